@@ -0,0 +1,45 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import util.DataGenerator.Table;
+import util.OfflineDatabase;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * batching loop of Database.bulkInsert with inserts replaced by a no-op, one op is one row
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class BatchingBenchmark {
+    static final int ROWS = 100000;
+
+    @Param({"100", "1000"})
+    int batchRows;
+
+    @Param({"0", "4"})
+    int pipelineDepth;
+
+    Object[] rows;
+    OfflineDatabase db;
+
+    @Setup
+    public void setup() {
+        rows = BenchData.data.slice(Table.bookings, 0, ROWS).toArray();
+        db = new OfflineDatabase("bench");
+        db.batchRows = batchRows;
+        db.pipelineDepth = pipelineDepth;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public long bulkInsert() {
+        return db.bulkInsert("bookings", rows.length, (iRow, i) -> rows[(int) i]);
+    }
+}
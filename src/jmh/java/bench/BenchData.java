@@ -0,0 +1,15 @@
+package bench;
+
+import util.DataGenerator;
+
+/**
+ * Dataset of the default counts of InsertData, overridable by the same system properties
+ */
+class BenchData {
+    static final long userCount = Long.getLong("userCount", 10000);
+    static final long tourCount = Long.getLong("tourCount", 10000);
+    static final long bookingCount = Long.getLong("bookingCount", 20000);
+
+    static final DataGenerator data = DataGenerator.of(userCount, (long) (userCount * 0.3f), (long) (userCount * 0.8f),
+            tourCount, bookingCount, Integer.getInteger("approvedBookingsPerTour", 3));
+}
@@ -0,0 +1,30 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import util.IdFormat;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * id formatting of Format.*Id, compared with the former String.format form
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FormatBenchmark {
+    final long count = BenchData.bookingCount;
+    final IdFormat format = new IdFormat("booking", count);
+    long i;
+
+    @Benchmark
+    public String idFormat() {
+        return format.format(++i % count + 1);
+    }
+
+    @Benchmark
+    public String stringFormat() {
+        return String.format("booking%0" + String.valueOf(count).length() + "d", ++i % count + 1);
+    }
+}
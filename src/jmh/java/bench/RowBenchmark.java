@@ -0,0 +1,38 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import util.DataGenerator;
+import util.DataGenerator.Table;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * row construction of each InsertData table, one op is one row index (2 or no reviews for reviews)
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class RowBenchmark {
+    @Param({"users", "tours", "bookings", "reviews"})
+    String table;
+
+    final DataGenerator data = BenchData.data;
+    Table t;
+    long count;
+    long i;
+
+    @Setup
+    public void setup() {
+        t = Table.valueOf(table);
+        count = data.indexCount(t);
+    }
+
+    @Benchmark
+    public Object row() {
+        return data.rowsOf(t, ++i % count);
+    }
+}
@@ -0,0 +1,52 @@
+package bench;
+
+import com.rethinkdb.ast.Query;
+import com.rethinkdb.model.OptArgs;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import util.DataGenerator.Table;
+import util.Document;
+import util.JsonBatch;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.rethinkdb.RethinkDB.r;
+
+/**
+ * serialization of one insert batch into the bytes sent to the server, one op is one batch
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SerializationBenchmark {
+    @Param({"users", "reviews"})
+    String table;
+
+    @Param({"100", "1000"})
+    int batchRows;
+
+    List<Document> batch;
+    final JsonBatch jsonBatch = new JsonBatch();
+    final OptArgs noOptArgs = new OptArgs();
+
+    @Setup
+    public void setup() {
+        batch = BenchData.data.slice(Table.valueOf(table), 0, batchRows);
+    }
+
+    @Benchmark
+    public ByteBuffer driver() {
+        return Query.start(1, r.table(table).insert(batch), noOptArgs).serialize();
+    }
+
+    @Benchmark
+    public ByteBuffer directJson() {
+        jsonBatch.encode(batch);
+        return Query.start(1, r.table(table).insert(jsonBatch), noOptArgs).serialize();
+    }
+}
@@ -0,0 +1,63 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import util.Database;
+import util.Metrics;
+import util.StubServer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Database.bulkInsert end to end through the driver against an in-process StubServer, one op is one row.
+ * Same rows are written again by every invocation, so the stub only holds ROWS documents
+ */
+@State(Scope.Benchmark)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class StubInsertBenchmark {
+    static final int ROWS = 20000;
+
+    @Param({"0", "500"})
+    long latencyMicros;
+
+    @Param({"0", "4"})
+    int pipelineDepth;
+
+    @Param({"false", "true"})
+    boolean directJson;
+
+    StubServer server;
+    Database db;
+
+    @Setup
+    public void setup() {
+        server = StubServer.start(0);
+        server.latencyMicros = latencyMicros;
+        db = new Database("bench", "localhost", server.port());
+        db.metrics = new Metrics();
+        db.pipelineDepth = pipelineDepth;
+        db.inFlightInserts = Math.max(1, pipelineDepth);
+        db.directJson = directJson;
+        db.insertConflict = "replace";
+        db.recreateTable("bookings", "bookingId");
+    }
+
+    @TearDown
+    public void tearDown() {
+        db.pool.close();
+        db.c.close();
+        server.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public long bulkInsert() {
+        return db.bulkInsert("bookings", ROWS, (iRow, i) -> BenchData.data.booking(i));
+    }
+}
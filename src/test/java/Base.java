@@ -1,10 +1,92 @@
+import org.junit.ClassRule;
+import org.junit.rules.TestRule;
+import org.junit.rules.TestWatcher;
+import org.junit.runner.Description;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import util.Database;
+import util.DataGenerator;
+import util.Metrics;
+import util.StubServer;
+import util.Timestamps;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
 
 public class Base {
     static final Logger logger = LoggerFactory.getLogger(Base.class);
-    Database db = new Database(System.getProperty("dbName", /*default db name:*/"test"));
+    /**
+     * in-process server used instead of a RethinkDB server with -DstubServer=true, to measure the client alone
+     */
+    static final StubServer stubServer = startStubServer();
+    Database db = Database.of(System.getProperty("dbName", /*default db name:*/"test"), Base::configure);
+
+    /**
+     * apply the settings of C once, to the Database shared by all test classes of this JVM
+     */
+    static void configure(Database db) {
+        db.workers = C.workers;
+        db.pipelineDepth = C.pipelineDepth;
+        db.inFlightInserts = C.inFlightInserts;
+        db.adaptiveBatch = C.adaptiveBatch;
+        db.targetBatchMillis = C.targetBatchMillis;
+        db.targetBatchBytes = C.targetBatchBytes;
+        db.directJson = C.directJson;
+        db.asyncSideTables = C.asyncSideTables;
+        db.deferIndexes = C.deferIndexes;
+        db.checkpointDir = C.checkpointDir == null ? null : Paths.get(C.checkpointDir);
+        db.checkpointIntervalMillis = C.checkpointIntervalMillis;
+        db.resume = C.resume;
+        db.shards = C.shards;
+        db.replicas = C.replicas;
+    }
+
+    /**
+     * @return a Database of the settings of C which is not shared, for a test which changes settings, to be closed
+     * by caller
+     */
+    Database newDatabase() {
+        Database other = new Database(db.dbName);
+        configure(other);
+        return other;
+    }
+
+    static StubServer startStubServer() {
+        if (!C.stubServer) return null;
+        StubServer server = StubServer.start(0);
+        server.latencyMicros = C.stubLatencyMicros;
+        server.rowNanos = C.stubRowNanos;
+        Database.defaultHostname = "localhost";
+        Database.defaultPort = server.port();
+        return server;
+    }
+
+    /**
+     * print metrics of Database operations after all tests of a class, and export them to metricsDir
+     */
+    @ClassRule
+    public static final TestRule metricsReport = new TestWatcher() {
+        @Override
+        protected void finished(Description description) {
+            if (Metrics.shared.isEmpty()) return;
+
+            String name = description.getTestClass().getSimpleName();
+            logger.info("metrics of {}:", name);
+            Metrics.shared.printSummary(logger);
+
+            Path dir = Paths.get(System.getProperty("metricsDir", "build/metrics"));
+            try {
+                Metrics.shared.exportCsv(dir.resolve(name + ".csv"));
+                Metrics.shared.exportJson(dir.resolve(name + ".json"));
+            } catch (IOException e) {
+                logger.warn("failed to export metrics to {}", dir, e);
+            }
+            Metrics.shared.reset();
+        }
+    };
 
     static class C {
         static final int ROWS_UNIT = 100;
@@ -27,34 +109,134 @@ public class Base {
         static final int approvedBookingsPerTour = Integer.valueOf(System.getProperty("approvedBookingsPerTour",
                 String.valueOf(3)));
 
-        static final int bookingsPerTour = Math.max((int) divUp(bookingCount, tourCount), approvedBookingsPerTour + 1/*non-approved*/);
-        static final long bookingTourCount = divUp(bookingCount, bookingsPerTour);
+        static final int workers = Integer.valueOf(System.getProperty("workers",
+                String.valueOf(1)));
+
+        static final int pipelineDepth = Integer.valueOf(System.getProperty("pipelineDepth",
+                String.valueOf(0)));
+
+        static final int inFlightInserts = Integer.valueOf(System.getProperty("inFlightInserts",
+                String.valueOf(1)));
+
+        static final boolean adaptiveBatch = Boolean.valueOf(System.getProperty("adaptiveBatch",
+                String.valueOf(false)));
+
+        /**
+         * round-trip time and serialized size each adaptive batch aims at
+         */
+        static final long targetBatchMillis = Long.valueOf(System.getProperty("targetBatchMillis",
+                String.valueOf(100)));
+
+        static final long targetBatchBytes = Long.valueOf(System.getProperty("targetBatchBytes",
+                String.valueOf(1 << 20)));
+
+        static final boolean directJson = Boolean.valueOf(System.getProperty("directJson",
+                String.valueOf(false)));
+
+        static final boolean asyncSideTables = Boolean.valueOf(System.getProperty("asyncSideTables",
+                String.valueOf(false)));
 
-        static final long approvedBookingCount = bookingCount / bookingsPerTour * approvedBookingsPerTour
-                + (bookingCount % bookingsPerTour == 0 ? 0 : Math.min(bookingCount % bookingsPerTour, approvedBookingsPerTour));
+        static final boolean deferIndexes = Boolean.valueOf(System.getProperty("deferIndexes",
+                String.valueOf(false)));
 
-        static final long reviewCount = approvedBookingCount * 2;
+        static final int shards = Integer.valueOf(System.getProperty("shards",
+                String.valueOf(1)));
+
+        /**
+         * replicas of each shard, must not exceed the count of servers
+         */
+        static final int replicas = Integer.valueOf(System.getProperty("replicas",
+                String.valueOf(1)));
+
+        /**
+         * directory of bulkInsert checkpoints, e.g. build/checkpoints, not set means no checkpoint
+         */
+        static final String checkpointDir = System.getProperty("checkpointDir");
+
+        static final long checkpointIntervalMillis = Long.valueOf(System.getProperty("checkpointIntervalMillis",
+                String.valueOf(1000)));
+
+        static final boolean resume = Boolean.valueOf(System.getProperty("resume",
+                String.valueOf(false)));
+
+        /**
+         * count of changefeeds opened on bookings and reviews while InsertData loads them
+         */
+        static final int changefeeds = Integer.valueOf(System.getProperty("changefeeds",
+                String.valueOf(0)));
+
+        /**
+         * distribution of createdAt: "uniform", "bursty[:bursts[:burstWidth]]", "recent[:skew]" or "now".
+         * Changefeed lag is measured from createdAt, so it defaults to "now" with changefeeds
+         */
+        static final String timestamps = System.getProperty("timestamps", changefeeds > 0 ? "now" : "uniform");
+
+        static final Instant timestampStart = Instant.parse(System.getProperty("timestampStart",
+                "2016-01-01T00:00:00Z"));
+
+        static final Duration timestampSpan = Duration.ofDays(Long.valueOf(System.getProperty("timestampSpanDays",
+                String.valueOf(3 * 365))));
+
+        /**
+         * directory of the NDJSON files written by ExportData
+         */
+        static final Path datasetDir = Paths.get(System.getProperty("datasetDir", "build/dataset"));
+
+        static final boolean datasetGzip = Boolean.valueOf(System.getProperty("datasetGzip",
+                String.valueOf(false)));
+
+        /**
+         * InsertData loads the files of datasetDir instead of generating rows
+         */
+        static final boolean importDataset = Boolean.valueOf(System.getProperty("importDataset",
+                String.valueOf(false)));
+
+        static final boolean stubServer = Boolean.valueOf(System.getProperty("stubServer",
+                String.valueOf(false)));
+
+        /**
+         * latency of each response of the stub server, plus stubRowNanos per row read or written
+         */
+        static final long stubLatencyMicros = Long.valueOf(System.getProperty("stubLatencyMicros",
+                String.valueOf(0)));
+
+        static final long stubRowNanos = Long.valueOf(System.getProperty("stubRowNanos",
+                String.valueOf(0)));
 
         static long divUp(long a, long b) {
             return (a + b - 1) / b;
         }
     }
 
+    /**
+     * dataset of the counts of C, bookingsPerTour, bookingTourCount and reviewCount are derived by DataGenerator.of()
+     */
+    static final DataGenerator data = DataGenerator.of(C.userCount, C.conducteurCount, C.passengerCount,
+            C.tourCount, C.bookingCount, C.approvedBookingsPerTour)
+            .withTimestamps(Timestamps.of(C.timestamps, C.timestampStart, C.timestampSpan));
+
+    /**
+     * @return NDJSON file of table in C.datasetDir, compressed if gzip
+     */
+    static Path datasetFile(String tableName, boolean gzip) {
+        return C.datasetDir.resolve(tableName + (gzip ? ".ndjson.gz" : ".ndjson"));
+    }
+
     static class Format {
         static final String userId(long i) {
-            return String.format("user%0" + String.valueOf(C.userCount).length() + "d", i + 1);
+            return data.userId(i);
         }
 
         static final String tourId(long i) {
-            return String.format("tour%0" + String.valueOf(C.tourCount).length() + "d", i + 1);
+            return data.tourId(i);
         }
 
         static final String bookingId(long i) {
-            return String.format("booking%0" + String.valueOf(C.bookingCount).length() + "d", i + 1);
+            return data.bookingId(i);
         }
 
         static final String reviewId(long i) {
-            return String.format("review%0" + String.valueOf(C.reviewCount).length() + "d", i + 1);
+            return data.reviewId(i);
         }
     }
 
@@ -68,6 +250,11 @@ public class Base {
         static final String replaced = "replaced";
         static final String array_limit = "array_limit";
 
+        //keys of the per-tour counts of CheckData, not document fields
+        static final String approvedCount = "approvedCount";
+        static final String otherCount = "otherCount";
+        static final String userCount = "userCount";
+
         static final String users = "users";
         static final String userId = "userId";
         static final String internalId = "internalId";
@@ -75,6 +262,8 @@ public class Base {
         static final String tours = "tours";
         static final String tourId = "tourId";
         static final String tourIdAndStatus = "tourIdAndStatus";
+        static final String seatsTotal = "seatsTotal";
+        static final String seatsRemain = "seatsRemain";
 
         static final String bookings = "bookings";
         static final String bookingId = "bookingId";
@@ -95,5 +284,6 @@ public class Base {
 
         static final String _selfReviews = "_selfReviews";
         static final String _selfBookings = "_selfBookings";
+        static final String _feedBookings = "_feedBookings";
     }
 }
@@ -0,0 +1,140 @@
+import org.junit.Test;
+import util.ReadCache;
+import util.Zipf;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.rethinkdb.RethinkDB.r;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Primary key lookups of users and tours with Zipfian popularity, without and with the read-through cache of Database.
+ * <p>
+ * While readers run, a writer updates cacheWriteRate documents/s of the same popularity, so the cache
+ * is invalidated by its changefeed. Latencies are recorded as "get uncached" and "get cached" in the Database
+ * metrics, hits and stale hits are logged by each cache. The field written is removed at the end.
+ */
+public class CacheBenchmark extends Base {
+
+    static class K {
+        static final int cacheThreads = Integer.valueOf(System.getProperty("cacheThreads",
+                String.valueOf(8)));
+
+        static final int cacheSeconds = Integer.valueOf(System.getProperty("cacheSeconds",
+                String.valueOf(10)));
+
+        static final int cacheEntries = Integer.valueOf(System.getProperty("cacheEntries",
+                String.valueOf(10000)));
+
+        static final double zipfExponent = Double.valueOf(System.getProperty("zipfExponent",
+                String.valueOf(0.99)));
+
+        static final double cacheWriteRate = Double.valueOf(System.getProperty("cacheWriteRate",
+                String.valueOf(100)));
+    }
+
+    static final String _touch = "_touch";
+
+    final Zipf users = new Zipf(C.userCount, K.zipfExponent);
+    final Zipf tours = new Zipf(C.tourCount, K.zipfExponent);
+
+    @Test
+    public void get_by_primary_key() throws Exception {
+        try {
+            long uncached = runGets("uncached", null, null);
+
+            ReadCache userCache = db.cache(S.users, K.cacheEntries);
+            ReadCache tourCache = db.cache(S.tours, K.cacheEntries);
+            long cached = runGets("cached", userCache, tourCache);
+            long hits = userCache.hitCount() + tourCache.hitCount();
+            long misses = userCache.missCount() + tourCache.missCount();
+
+            logger.info("{} entries, zipf {}: uncached {} gets/s, cached {} gets/s ({}%), hit ratio {}%",
+                    K.cacheEntries, K.zipfExponent, uncached, cached, cached * 100 / Math.max(1, uncached),
+                    hits * 100 / Math.max(1, hits + misses));
+        } finally {
+            db.closeCaches();
+            for (String table : new String[]{S.users, S.tours}) {
+                r.table(table).filter(row -> row.hasFields(_touch)).replace(row -> row.without(_touch)).run(db.c);
+            }
+        }
+    }
+
+    Map<String, Object> get(ReadCache cache, String tableName, Object key) {
+        return cache != null ? cache.get(key) : db.get(tableName, key);
+    }
+
+    /**
+     * @param userCache null to read users without cache, likewise tourCache
+     * @return gets/s
+     */
+    long runGets(String mode, ReadCache userCache, ReadCache tourCache) throws Exception {
+        AtomicLong getCount = new AtomicLong();
+        AtomicLong errorCount = new AtomicLong();
+        AtomicBoolean stop = new AtomicBoolean();
+        long endNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(K.cacheSeconds);
+
+        ExecutorService executor = Executors.newFixedThreadPool(K.cacheThreads + 1);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int iThread = 0; iThread < K.cacheThreads; iThread++) {
+            futures.add(executor.submit(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                for (long startTime = System.nanoTime(); startTime < endNanos; startTime = System.nanoTime()) {
+                    try {
+                        if (rnd.nextBoolean()) {
+                            get(userCache, S.users, Format.userId(users.sample(rnd) - 1));
+                        } else {
+                            get(tourCache, S.tours, Format.tourId(tours.sample(rnd) - 1));
+                        }
+                        db.metrics.timer("get " + mode).record(startTime);
+                        getCount.incrementAndGet();
+                    } catch (RuntimeException e) {
+                        if (errorCount.incrementAndGet() == 1) {
+                            logger.error("get failed", e);
+                        }
+                    }
+                }
+                return null;
+            }));
+        }
+
+        Future<?> writer = executor.submit(() -> {
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            long intervalNanos = K.cacheWriteRate > 0 ? (long) (1e9 / K.cacheWriteRate) : 0;
+            for (long seq = 0; intervalNanos > 0 && !stop.get(); seq++) {
+                LockSupport.parkNanos(intervalNanos);
+                if (rnd.nextBoolean()) {
+                    r.table(S.users).get(Format.userId(users.sample(rnd) - 1)).update(r.hashMap(_touch, seq)).run(db.c);
+                } else {
+                    r.table(S.tours).get(Format.tourId(tours.sample(rnd) - 1)).update(r.hashMap(_touch, seq)).run(db.c);
+                }
+            }
+            return null;
+        });
+
+        executor.shutdown();
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            stop.set(true);
+        }
+        writer.get();
+
+        long getsPerSec = getCount.get() / Math.max(1, K.cacheSeconds);
+        logger.info("{}: {} gets/s by {} threads, {} errors", mode, getsPerSec, K.cacheThreads, errorCount.get());
+        assertEquals("should no get fail", 0, errorCount.get());
+        return getsPerSec;
+    }
+}
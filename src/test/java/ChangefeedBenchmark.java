@@ -0,0 +1,65 @@
+import org.junit.Test;
+import util.Changefeed;
+import util.DataGenerator;
+import util.DataGenerator.Table;
+import util.Timestamps;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Insert throughput of bookings as the count of concurrent changefeeds on the table grows.
+ * <p>
+ * For each count of changefeedCounts the bookings are loaded into a scratch table while that many feeds
+ * are open. Lags are recorded as "changefeed {count} feeds" in the Database metrics.
+ */
+public class ChangefeedBenchmark extends Base {
+
+    static final String changefeedCounts = System.getProperty("changefeedCounts", "0,1,2,4,8");
+
+    /**
+     * lag is measured from createdAt, so it must be the time the row was generated
+     */
+    static final DataGenerator feedData = data.withTimestamps(Timestamps.now());
+
+    @Test
+    public void insert_bookings_with_changefeeds() {
+        Map<Integer, Long> rowsPerSec = new LinkedHashMap<>();
+
+        for (String value : changefeedCounts.split(",")) {
+            int feedCount = Integer.valueOf(value.trim());
+            db.recreateTable(S._feedBookings, S.bookingId);
+
+            List<Changefeed> feeds = new ArrayList<>();
+            try {
+                for (int i = 0; i < feedCount; i++) {
+                    feeds.add(db.changefeed(S._feedBookings, S.createdAt, "changefeed " + feedCount + " feeds"));
+                }
+
+                long startTime = System.nanoTime();
+                long insertedCount = db.bulkInsert(S._feedBookings, data.indexCount(Table.bookings),
+                        (iRow, iBooking) -> feedData.booking(iBooking));
+                long insertMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+                rowsPerSec.put(feedCount, insertedCount * 1000 / insertMillis);
+
+                for (Changefeed feed : feeds) {
+                    assertTrue("changefeed received " + feed.count() + " of " + insertedCount,
+                            feed.await(insertedCount, TimeUnit.MINUTES.toMillis(1)));
+                }
+            } finally {
+                feeds.forEach(Changefeed::close);
+            }
+        }
+
+        db.dropTable(S._feedBookings);
+
+        long baseline = rowsPerSec.values().iterator().next();
+        rowsPerSec.forEach((feedCount, rate) -> logger.info("{} changefeeds: {} rows/s inserted, {}% of {} changefeeds",
+                feedCount, rate, rate * 100 / Math.max(1, baseline), rowsPerSec.keySet().iterator().next()));
+    }
+}
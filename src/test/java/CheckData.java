@@ -1,15 +1,256 @@
-import com.rethinkdb.model.OptArgs;
+import com.rethinkdb.gen.ast.ReqlExpr;
+import com.rethinkdb.gen.ast.ReqlFunction1;
+import com.rethinkdb.net.Connection;
 import org.junit.Test;
+import util.Scan;
+import util.SortedGroups;
+import util.SortedKeyJoin;
 
 import java.time.OffsetDateTime;
 import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collector;
 
 import static com.rethinkdb.RethinkDB.r;
 import static org.junit.Assert.assertEquals;
 
 public class CheckData extends Base {
 
+    /**
+     * "server": referential checks as one nested query on server, "stream": merge join of sorted index cursors on client
+     */
+    static final String verifyMode = System.getProperty("verifyMode", "server");
+    static final int maxReportedOrphans = 10;
+
+    /**
+     * "server" mode groups bookings per chunk of groupChunkTours tours, groupParallelism chunks at a time
+     */
+    static final int groupChunkTours = Integer.valueOf(System.getProperty("groupChunkTours",
+            String.valueOf(10000)));
+    static final int groupParallelism = Integer.valueOf(System.getProperty("groupParallelism",
+            String.valueOf(4)));
+
+    /**
+     * keys of a table, by primary key or secondary index, optionally only of rows matching filter
+     */
+    static class Keys {
+        final String table;
+        final String index;
+        final boolean isPrimaryKey;
+        final ReqlFunction1 filter;
+
+        Keys(String table, String index, boolean isPrimaryKey, ReqlFunction1 filter) {
+            this.table = table;
+            this.index = index;
+            this.isPrimaryKey = isPrimaryKey;
+            this.filter = filter;
+        }
+
+        static Keys primaryKey(String table, String primaryKey) {
+            return new Keys(table, primaryKey, true, null);
+        }
+
+        static Keys index(String table, String index) {
+            return new Keys(table, index, false, null);
+        }
+
+        Keys filter(ReqlFunction1 filter) {
+            return new Keys(table, index, isPrimaryKey, filter);
+        }
+
+        ReqlExpr notContains(ReqlExpr key) {
+            if (isPrimaryKey && filter == null) {
+                return r.not(r.table(table).get(key));
+            }
+            ReqlExpr rows = r.table(table).getAll(key).optArg(S.index, index);
+            return (filter == null ? rows : rows.filter(filter)).isEmpty();
+        }
+
+        /**
+         * @return distinct keys in index order. Without filter the index is read by distinct(), one key per value
+         * like server mode, rather than one key per row
+         */
+        ReqlExpr sorted() {
+            if (filter == null) {
+                return r.table(table).distinct().optArg(S.index, index);
+            }
+            return r.table(table).orderBy().optArg(S.index, r.asc(index)).filter(filter).g(index);
+        }
+
+        @Override
+        public String toString() {
+            return table + "." + index + (filter == null ? "" : "(filtered)");
+        }
+    }
+
+    /**
+     * @return count of distinct values of index of table which none of parents contains
+     */
+    long countOrphans(String table, String index, Keys... parents) {
+        long startTime = System.nanoTime();
+        long count;
+
+        if (verifyMode.equals("stream")) {
+            List<Scan<Object>> scans = new ArrayList<>();
+            try {
+                Scan<Object> child = db.scan(Keys.index(table, index).sorted(), table + "." + index);
+                scans.add(child);
+                for (Keys parent : parents) {
+                    scans.add(db.scan(parent.sorted(), parent.toString()));
+                }
+                long[] reportedCount = {0};
+                count = SortedKeyJoin.countMissing(child, scans.subList(1, scans.size()), key -> {
+                    if (reportedCount[0]++ < maxReportedOrphans) {
+                        logger.warn("orphan {}.{}: {}", table, index, key);
+                    }
+                });
+            } finally {
+                scans.forEach(Scan::close);
+            }
+        } else {
+            count = r.table(table).distinct().optArg(S.index, index)
+                    .filter(key -> {
+                        ReqlExpr orphan = parents[0].notContains(key);
+                        for (int i = 1; i < parents.length; i++) {
+                            orphan = orphan.and(parents[i].notContains(key));
+                        }
+                        return orphan;
+                    })
+                    .count()
+                    .run(db.c);
+        }
+
+        logger.info("{} check of {}.{} in {}: {} orphans, {} ms", verifyMode, table, index, Arrays.toString(parents),
+                count, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+        return count;
+    }
+
+    /**
+     * counts of tours whose bookings have approvedBookingsPerTour approved, bookingsPerTour - approvedBookingsPerTour
+     * other, and bookingsPerTour distinct users
+     */
+    static class TourCounts {
+        long approved;
+        long others;
+        long uniqueUsers;
+
+        void add(TourCounts counts) {
+            approved += counts.approved;
+            others += counts.others;
+            uniqueUsers += counts.uniqueUsers;
+        }
+    }
+
+    /**
+     * bookings of one tour reduced on client
+     */
+    static class TourBookings {
+        long approved;
+        long others;
+        final Set<Object> userIds = new HashSet<>();
+
+        void add(Map<String, Object> booking) {
+            if (S.approved.equals(booking.get(S.status))) {
+                approved++;
+            } else {
+                others++;
+            }
+            userIds.add(booking.get(S.userId));
+        }
+
+        TourBookings merge(TourBookings other) {
+            approved += other.approved;
+            others += other.others;
+            userIds.addAll(other.userIds);
+            return this;
+        }
+    }
+
+    /**
+     * aggregate bookings per tour without building an array of all tours, which would need array_limit
+     * of the booking count: "stream" reduces a scan ordered by tourId on client, one tour at a time,
+     * "server" groups chunks of tourId ranges on server in parallel
+     */
+    TourCounts countTours() {
+        long startTime = System.nanoTime();
+        TourCounts counts = verifyMode.equals("stream") ? countToursByScan() : countToursByChunks();
+        logger.info("{} group check of {}.{}: {} ms", verifyMode, S.bookings, S.tourId,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+        return counts;
+    }
+
+    TourCounts countToursByScan() {
+        TourCounts counts = new TourCounts();
+        try (Scan<Map<String, Object>> scan = db.scan(r.table(S.bookings).orderBy().optArg(S.index, r.asc(S.tourId))
+                .pluck(S.tourId, S.status, S.userId), S.bookings + "." + S.tourId + " groups")) {
+            SortedGroups.forEach(scan, row -> row.get(S.tourId),
+                    Collector.of(TourBookings::new, TourBookings::add, TourBookings::merge),
+                    (tourId, tour) -> {
+                        if (tour.approved == C.approvedBookingsPerTour) counts.approved++;
+                        if (tour.others == data.bookingsPerTour - C.approvedBookingsPerTour) counts.others++;
+                        if (tour.userIds.size() == data.bookingsPerTour) counts.uniqueUsers++;
+                    });
+        }
+        return counts;
+    }
+
+    TourCounts countToursByChunks() {
+        ExecutorService executor = Executors.newFixedThreadPool(groupParallelism);
+        try {
+            List<Future<TourCounts>> futures = new ArrayList<>();
+            for (long from = 0; from < data.bookingTourCount; from += groupChunkTours) {
+                Object lower = from == 0 ? r.minval() : Format.tourId(from);
+                Object upper = from + groupChunkTours >= data.bookingTourCount ? r.maxval() : Format.tourId(from + groupChunkTours);
+                futures.add(executor.submit(() -> countToursBetween(lower, upper)));
+            }
+            TourCounts counts = new TourCounts();
+            for (Future<TourCounts> future : futures) {
+                counts.add(future.get());
+            }
+            return counts;
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException(e);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * @return counts of the tours in [lower, upper), at most groupChunkTours groups are built on server
+     */
+    TourCounts countToursBetween(Object lower, Object upper) {
+        ReqlExpr tours = r.table(S.bookings).between(lower, upper).optArg(S.index, S.tourId).group(S.tourId);
+        Map<String, Long> res;
+        Connection conn = db.pool.borrow();
+        try {
+            res = r.expr(r.hashMap(S.approvedCount, tours.count(row -> row.g(S.status).eq(S.approved)).ungroup()
+                    .count(row -> row.g(S.reduction).eq(C.approvedBookingsPerTour)))
+                    .with(S.otherCount, tours.count(row -> row.g(S.status).ne(S.approved)).ungroup()
+                            .count(row -> row.g(S.reduction).eq(data.bookingsPerTour - C.approvedBookingsPerTour)))
+                    .with(S.userCount, tours.g(S.userId).distinct().count().ungroup()
+                            .count(row -> row.g(S.reduction).eq(data.bookingsPerTour))))
+                    .run(conn);
+        } finally {
+            db.pool.release(conn);
+        }
+        TourCounts counts = new TourCounts();
+        counts.approved = res.get(S.approvedCount);
+        counts.others = res.get(S.otherCount);
+        counts.uniqueUsers = res.get(S.userCount);
+        return counts;
+    }
+
     @Test
     public void check_users() {
         String minUserId = Format.userId(0);
@@ -45,15 +286,12 @@ public class CheckData extends Base {
         //////////////////////////////////////////////////////////////////////
         //generic checks
         assertEquals("should no any `userId` which does not exist in `users`", 0,
-                (long) r.table(S.tours).distinct().optArg(S.index, S.userId)
-                        .filter(userId -> r.not(r.table(S.users).get(userId)))
-                        .count()
-                        .run(db.c));
+                countOrphans(S.tours, S.userId, Keys.primaryKey(S.users, S.userId)));
     }
 
     @Test
     public void check_bookings() {
-        long count, exceptedCount;
+        long exceptedCount;
 
         String minBookingId = Format.bookingId(0);
         String maxBookingId = Format.bookingId(C.bookingCount - 1);
@@ -70,60 +308,33 @@ public class CheckData extends Base {
         assertEquals(Format.userId(C.userCount - 1),
                 r.table(S.bookings).max().optArg(S.index, S.userId).g(S.userId).run(db.c));
 
-        assertEquals("should have specified numbers of unique `tourId`", C.bookingTourCount,
+        assertEquals("should have specified numbers of unique `tourId`", data.bookingTourCount,
                 (long) r.table(S.bookings).distinct().optArg(S.index, S.tourId).count().run(db.c));
 
-        // r.db("rcs").table("bookings")
-        // .group({index:"tourId"})
-        // .count(r.row("status").eq("approved"))
-        // .ungroup()
-        // .filter(r.row("reduction").eq(3))
-
-        count = r.table(S.bookings).group().optArg(S.index, S.tourId)
-                .count(row -> row.g(S.status).eq(S.approved))
-                .ungroup()
-                .count(row -> row.g(S.reduction).eq(C.approvedBookingsPerTour))
-                .run(db.c, OptArgs.of(S.array_limit, C.bookingCount));
-        exceptedCount = C.bookingTourCount -
-                (C.bookingCount % C.bookingsPerTour == 0
-                        || C.bookingCount % C.bookingsPerTour >= C.approvedBookingsPerTour
+        TourCounts tours = countTours();
+
+        exceptedCount = data.bookingTourCount -
+                (C.bookingCount % data.bookingsPerTour == 0
+                        || C.bookingCount % data.bookingsPerTour >= C.approvedBookingsPerTour
                         ? 0 : 1);
         assertEquals("should almost every tour have " + C.approvedBookingsPerTour + " approved applicants",
-                exceptedCount, count);
-
-        count = r.table(S.bookings).group().optArg(S.index, S.tourId)
-                .count(row -> row.g(S.status).ne(S.approved))
-                .ungroup()
-                .filter(row -> row.g(S.reduction).eq(C.bookingsPerTour - C.approvedBookingsPerTour))
-                .count()
-                .run(db.c, OptArgs.of(S.array_limit, C.bookingCount));
-        exceptedCount = C.bookingTourCount - (C.bookingCount % C.bookingsPerTour == 0 ? 0 : 1);
+                exceptedCount, tours.approved);
+
+        exceptedCount = data.bookingTourCount - (C.bookingCount % data.bookingsPerTour == 0 ? 0 : 1);
         assertEquals("should almost every tour have some non-approved applicants",
-                exceptedCount, count);
-
-        count = r.table(S.bookings).group().optArg(S.index, S.tourId)
-                .g(S.userId).distinct().count()
-                .ungroup()
-                .filter(row -> row.g(S.reduction).eq(C.bookingsPerTour))
-                .count()
-                .run(db.c, OptArgs.of(S.array_limit, C.bookingCount));
-        exceptedCount = C.bookingTourCount - (C.bookingCount % C.bookingsPerTour == 0 ? 0 : 1);
-        assertEquals("should almost every tour have " + C.bookingsPerTour + " unique applicants",
-                exceptedCount, count);
+                exceptedCount, tours.others);
+
+        exceptedCount = data.bookingTourCount - (C.bookingCount % data.bookingsPerTour == 0 ? 0 : 1);
+        assertEquals("should almost every tour have " + data.bookingsPerTour + " unique applicants",
+                exceptedCount, tours.uniqueUsers);
 
         //////////////////////////////////////////////////////////////////////
         //generic checks
         assertEquals("should no any `userId` which does not exist in `users`", 0,
-                (long) r.table(S.bookings).distinct().optArg(S.index, S.userId)
-                        .filter(userId -> r.not(r.table(S.users).get(userId)))
-                        .count()
-                        .run(db.c));
+                countOrphans(S.bookings, S.userId, Keys.primaryKey(S.users, S.userId)));
 
         assertEquals("should no any `tourId` which does not exist in `tours`", 0,
-                (long) r.table(S.bookings).distinct().optArg(S.index, S.tourId)
-                        .filter(tourId -> r.not(r.table(S.tours).get(tourId)))
-                        .count()
-                        .run(db.c));
+                countOrphans(S.bookings, S.tourId, Keys.primaryKey(S.tours, S.tourId)));
     }
 
     @Test
@@ -132,14 +343,14 @@ public class CheckData extends Base {
         long selfReviewCount = db.getTableRowCount(S._selfReviews);
 
         String minReviewId = Format.reviewId(0);
-        String maxReviewId = Format.reviewId(C.reviewCount - 1);
-        logger.info("except review count: {}, min: {}, max: {}", C.reviewCount, minReviewId, maxReviewId);
+        String maxReviewId = Format.reviewId(data.reviewCount - 1);
+        logger.info("except review count: {}, min: {}, max: {}", data.reviewCount, minReviewId, maxReviewId);
 
-        assertEquals(C.reviewCount, db.getTableRowCount(S.reviews));
+        assertEquals(data.reviewCount, db.getTableRowCount(S.reviews));
         assertEquals(minReviewId, r.table(S.reviews).min().optArg(S.index, S.reviewId).g(S.reviewId).run(db.c));
         assertEquals(maxReviewId, r.table(S.reviews).max().optArg(S.index, S.reviewId).g(S.reviewId).run(db.c));
 
-        long reviewTourCount = C.bookingTourCount;
+        long reviewTourCount = data.bookingTourCount;
         assertEquals(reviewTourCount,
                 (long) r.table(S.reviews).distinct().optArg(S.index, S.tourId).count().run(db.c));
         assertEquals(Format.tourId(0),
@@ -150,67 +361,28 @@ public class CheckData extends Base {
         //////////////////////////////////////////////////////////////////////
         //generic checks
         assertEquals("should no any `ofUserId` which does not exist in `users`", 0,
-                (long) r.table(S.reviews).distinct().optArg(S.index, S.ofUserId)
-                        .filter(userId -> r.not(r.table(S.users).get(userId)))
-                        .count()
-                        .run(db.c));
+                countOrphans(S.reviews, S.ofUserId, Keys.primaryKey(S.users, S.userId)));
 
         assertEquals("should no any `byUserId` which does not exist in `users`", 0,
-                (long) r.table(S.reviews).distinct().optArg(S.index, S.byUserId)
-                        .filter(userId -> r.not(r.table(S.users).get(userId)))
-                        .count()
-                        .run(db.c));
+                countOrphans(S.reviews, S.byUserId, Keys.primaryKey(S.users, S.userId)));
 
         assertEquals("should no any `tourId` which does not exist in `tours`", 0,
-                (long) r.table(S.reviews).distinct().optArg(S.index, S.tourId)
-                        .filter(tourId -> r.not(r.table(S.tours).get(tourId)))
-                        .count()
-                        .run(db.c));
+                countOrphans(S.reviews, S.tourId, Keys.primaryKey(S.tours, S.tourId)));
 
         assertEquals("should no any `tourId` which does not exist in `bookings`", 0,
-                (long) r.table(S.reviews).distinct().optArg(S.index, S.tourId)
-                        .filter(tourId ->
-                                r.table(S.bookings).getAll(tourId).optArg(S.index, S.tourId)
-                                        .isEmpty()
-                        )
-                        .count()
-                        .run(db.c));
+                countOrphans(S.reviews, S.tourId, Keys.index(S.bookings, S.tourId)));
 
         assertEquals("should no any `tourId` which booking are not approved", 0,
-                (long) r.table(S.reviews).distinct().optArg(S.index, S.tourId)
-                        .filter(tourId ->
-                                r.table(S.bookings).getAll(tourId).optArg(S.index, S.tourId)
-                                        .filter(row -> row.g(S.status).eq(S.approved))
-                                        .isEmpty()
-                        )
-                        .count()
-                        .run(db.c));
+                countOrphans(S.reviews, S.tourId, Keys.index(S.bookings, S.tourId)
+                        .filter(row -> row.g(S.status).eq(S.approved))));
 
         assertEquals("should no any `ofUserId` which does not exist in `bookings` or `tours`", 0,
-                (long) r.table(S.reviews).distinct().optArg(S.index, S.ofUserId)
-                        .filter(userId ->
-                                r.table(S.bookings).getAll(userId).optArg(S.index, S.userId)
-                                        .isEmpty()
-                                        .and(r.table(S.tours).getAll(userId).optArg(S.index, S.userId)
-                                                .isEmpty()
-                                        )
-                        )
-                        .count()
-                        .run(db.c));
+                countOrphans(S.reviews, S.ofUserId, Keys.index(S.bookings, S.userId), Keys.index(S.tours, S.userId)));
 
         assertEquals("should no any `byUserId` which does not exist in `bookings` or `tours`", 0,
-                (long) r.table(S.reviews).distinct().optArg(S.index, S.byUserId)
-                        .filter(userId ->
-                                r.table(S.bookings).getAll(userId).optArg(S.index, S.userId)
-                                        .isEmpty()
-                                        .and(r.table(S.tours).getAll(userId).optArg(S.index, S.userId)
-                                                .isEmpty()
-                                        )
-                        )
-                        .count()
-                        .run(db.c));
+                countOrphans(S.reviews, S.byUserId, Keys.index(S.bookings, S.userId), Keys.index(S.tours, S.userId)));
 
-        assertEquals("every review should have unique [`tourId`,`byUserId`,`ofUserId`]", C.reviewCount - selfReviewCount / 2,
+        assertEquals("every review should have unique [`tourId`,`byUserId`,`ofUserId`]", data.reviewCount - selfReviewCount / 2,
                 (long) r.table(S.reviews).distinct().optArg(S.index, S.tourIdAndbyUserIdAndofUserId)
                         .count()
                         .run(db.c));
@@ -0,0 +1,129 @@
+import com.rethinkdb.net.Connection;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.rethinkdb.RethinkDB.r;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Many passengers booking the same few tours at once: concurrent atomic updates of tours.seatsRemain,
+ * which decrement it while it is positive and fail with "sold out" otherwise.
+ * <p>
+ * For each count of contentionThreads the seatsRemain of the hotTours first tours is set to hotSeats, then
+ * the threads book random hot tours for contentionSeconds. Latencies are recorded as "book {threads} threads"
+ * in the Database metrics. After each run the seats left must equal hotSeats minus the successful bookings
+ * and never be negative. The seatsRemain of the hot tours is restored at the end.
+ */
+public class ContentionBenchmark extends Base {
+
+    static class H {
+        static final int hotTours = Integer.valueOf(System.getProperty("hotTours",
+                String.valueOf(10)));
+
+        static final long hotSeats = Long.valueOf(System.getProperty("hotSeats",
+                String.valueOf(10000)));
+
+        static final String contentionThreads = System.getProperty("contentionThreads", "1,2,4,8,16,32");
+
+        static final int contentionSeconds = Integer.valueOf(System.getProperty("contentionSeconds",
+                String.valueOf(5)));
+    }
+
+    static final String soldOut = "sold out";
+
+    static Map<String, Object> book(Connection conn, String tourId) {
+        return r.table(S.tours).get(tourId)
+                .update(tour -> r.branch(tour.g(S.seatsRemain).gt(0)
+                        , r.hashMap(S.seatsRemain, tour.g(S.seatsRemain).sub(1))
+                        , r.error(soldOut)
+                ))
+                .run(conn);
+    }
+
+    @Test
+    public void book_hot_tours() throws Exception {
+        int hotTours = (int) Math.min(H.hotTours, C.tourCount);
+        List<String> hotTourIds = new ArrayList<>(hotTours);
+        for (int i = 0; i < hotTours; i++) {
+            hotTourIds.add(Format.tourId(i));
+        }
+
+        try {
+            for (String value : H.contentionThreads.split(",")) {
+                int threads = Integer.valueOf(value.trim());
+                r.table(S.tours).getAll(hotTourIds.toArray()).update(r.hashMap(S.seatsRemain, H.hotSeats)).run(db.c);
+                runBookings(hotTourIds, threads);
+            }
+        } finally {
+            r.table(S.tours).getAll(hotTourIds.toArray())
+                    .update(tour -> r.hashMap(S.seatsRemain, tour.g(S.seatsTotal))).run(db.c);
+        }
+    }
+
+    void runBookings(List<String> hotTourIds, int threads) throws Exception {
+        AtomicLong bookedCount = new AtomicLong();
+        AtomicLong soldOutCount = new AtomicLong();
+        AtomicLong errorCount = new AtomicLong();
+        long endNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(H.contentionSeconds);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int iThread = 0; iThread < threads; iThread++) {
+            futures.add(executor.submit(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                Connection conn = db.pool.borrow();
+                try {
+                    for (long startTime = System.nanoTime(); startTime < endNanos; startTime = System.nanoTime()) {
+                        String tourId = hotTourIds.get(rnd.nextInt(hotTourIds.size()));
+                        try {
+                            Map<String, Object> res = book(conn, tourId);
+                            db.metrics.timer("book " + threads + " threads").record(startTime);
+                            if ((Long) res.get("replaced") == 1) {
+                                bookedCount.incrementAndGet();
+                            } else if ((Long) res.get("errors") > 0 && String.valueOf(res.get("first_error")).contains(soldOut)) {
+                                soldOutCount.incrementAndGet();
+                            } else {
+                                throw new RuntimeException("unexpected result " + res);
+                            }
+                        } catch (RuntimeException e) {
+                            if (errorCount.incrementAndGet() == 1) {
+                                logger.error("booking {} failed", tourId, e);
+                            }
+                        }
+                    }
+                } finally {
+                    db.pool.release(conn);
+                }
+                return null;
+            }));
+        }
+        executor.shutdown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+
+        long attempts = bookedCount.get() + soldOutCount.get() + errorCount.get();
+        logger.info("{} threads on {} tours: {} bookings/s, {} sold out ({}%), {} errors ({}%)",
+                threads, hotTourIds.size(), bookedCount.get() / Math.max(1, H.contentionSeconds),
+                soldOutCount.get(), soldOutCount.get() * 100 / Math.max(1, attempts),
+                errorCount.get(), errorCount.get() * 100 / Math.max(1, attempts));
+
+        long negativeCount = r.table(S.tours).getAll(hotTourIds.toArray())
+                .filter(tour -> tour.g(S.seatsRemain).lt(0)).count().run(db.c);
+        assertEquals("seatsRemain should never be negative", 0, negativeCount);
+
+        Number seatsRemain = r.table(S.tours).getAll(hotTourIds.toArray()).sum(S.seatsRemain).run(db.c);
+        assertEquals("each successful booking should take exactly one seat",
+                H.hotSeats * hotTourIds.size() - bookedCount.get(), seatsRemain.longValue());
+        assertEquals("should no booking fail except sold out", 0, errorCount.get());
+    }
+}
@@ -0,0 +1,54 @@
+import org.junit.Test;
+import util.Scan;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Range scans of the createdAt indexes of tours, bookings and reviews, as loaded by InsertData.
+ * <p>
+ * For each window of rangeWindows (ISO-8601 durations), rangeQueries random windows of the
+ * timestamp span are read by between() on the createdAt index. Latencies and rows are recorded
+ * as "between {table} {window}" in the Database metrics. Meaningful with distributed timestamps,
+ * e.g. -Dtimestamps=bursty, not with "now".
+ */
+public class DateRangeBenchmark extends Base {
+
+    static final String rangeWindows = System.getProperty("rangeWindows", "PT1H,P1D,P7D,P30D");
+
+    static final int rangeQueries = Integer.valueOf(System.getProperty("rangeQueries",
+            String.valueOf(100)));
+
+    @Test
+    public void between_createdAt() {
+        ThreadLocalRandom rnd = ThreadLocalRandom.current();
+        long spanMillis = C.timestampSpan.toMillis();
+
+        for (String table : new String[]{S.tours, S.bookings, S.reviews}) {
+            for (String value : rangeWindows.split(",")) {
+                Duration window = Duration.parse(value.trim());
+                long windowMillis = Math.min(window.toMillis(), spanMillis);
+                long totalRows = 0;
+
+                for (int i = 0; i < rangeQueries; i++) {
+                    OffsetDateTime from = OffsetDateTime.ofInstant(
+                            C.timestampStart.plusMillis(rnd.nextLong(spanMillis - windowMillis + 1)), ZoneOffset.UTC);
+                    long startTime = System.nanoTime();
+                    long rowCount = 0;
+                    try (Scan<Object> scan = db.scan(table, S.createdAt, from, from.plus(window)).readAhead(0)) {
+                        for (Object unused : scan) {
+                            rowCount++;
+                        }
+                    }
+                    db.metrics.timer("between " + table + " " + window).record(startTime, rowCount, 0);
+                    totalRows += rowCount;
+                }
+
+                logger.info("between {} {}: {} queries, {} rows per query",
+                        table, window, rangeQueries, totalRows / Math.max(1, rangeQueries));
+            }
+        }
+    }
+}
@@ -0,0 +1,73 @@
+import org.junit.Test;
+import util.Database;
+import util.DataGenerator;
+import util.DataGenerator.Table;
+import util.Document;
+import util.NdjsonFile;
+
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import static com.rethinkdb.RethinkDB.r;
+
+/**
+ * Writes the rows InsertData would insert, including the side tables, as one NDJSON file per table to
+ * datasetDir (gzip compressed with -DdatasetGzip=true). No server is needed, so it does not extend Base.
+ * <p>
+ * InsertData -DimportDataset=true loads these files instead of generating rows, so load benchmarks measure
+ * the ingest alone, and the same dataset can be replayed to other servers.
+ */
+public class ExportData {
+    static final DataGenerator data = Base.data;
+
+    @Test
+    public void export_users() {
+        export(Base.S.users, data.indexCount(Table.users), (iRow, iUser) -> data.user(iUser));
+    }
+
+    @Test
+    public void export_tours() {
+        export(Base.S.tours, data.indexCount(Table.tours), (iRow, iTour) -> data.tour(iTour));
+    }
+
+    @Test
+    public void export_bookings() {
+        try (NdjsonFile.Writer selfBookings = new NdjsonFile.Writer(file(Base.S._selfBookings))) {
+            export(Base.S.bookings, data.indexCount(Table.bookings), (iRow, iBooking) -> {
+                Document rec = data.booking(iBooking);
+                if (data.isSelfBooking(iBooking)) {
+                    selfBookings.write(r.hashMap(Base.S.bookingId, rec.get(Base.S.bookingId)));
+                }
+                return rec;
+            });
+        }
+    }
+
+    @Test
+    public void export_reviews() {
+        try (NdjsonFile.Writer selfReviews = new NdjsonFile.Writer(file(Base.S._selfReviews))) {
+            export(Base.S.reviews, data.indexCount(Table.reviews), (iRow, iBooking) -> {
+                Document[] recs = data.reviewsOfBooking(iBooking);
+                if (recs != null && data.isSelfBooking(iBooking)) {
+                    for (Document rec : recs) {
+                        selfReviews.write(rec);
+                    }
+                }
+                return recs;
+            });
+        }
+    }
+
+    static Path file(String tableName) {
+        return Base.datasetFile(tableName, Base.C.datasetGzip);
+    }
+
+    void export(String tableName, long callingCount, Database.RowProvider2 rowProvider) {
+        Path file = file(tableName);
+        long startTime = System.nanoTime();
+        long rowCount = NdjsonFile.export(file, callingCount, rowProvider);
+        long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+        Base.logger.info("{} rows of {} exported to {} ({} bytes): {} rows/s",
+                rowCount, tableName, file, file.toFile().length(), rowCount * 1000 / millis);
+    }
+}
@@ -0,0 +1,40 @@
+import org.junit.Test;
+import util.IdFormat;
+
+import static org.junit.Assert.assertEquals;
+
+public class FormatTest {
+
+    static String legacyFormat(String prefix, long count, long value) {
+        return String.format(prefix + "%0" + String.valueOf(count).length() + "d", value);
+    }
+
+    @Test
+    public void same_as_string_format() {
+        long[] counts = {1, 9, 10, 99, 100, 12345, 10000000, Long.MAX_VALUE};
+        long[] values = {-12, -1, 0, 1, 9, 10, 11, 99, 100, 101, 999, 1000, 12345, 99999, 100000, 123456789012L, Long.MAX_VALUE};
+
+        for (long count : counts) {
+            IdFormat format = new IdFormat("id", count);
+            for (long value : values) {
+                assertEquals(legacyFormat("id", count, value), format.format(value));
+            }
+        }
+    }
+
+    @Test
+    public void same_ids_as_before() {
+        for (long i = 0; i < Base.C.userCount; i++) {
+            assertEquals(legacyFormat("user", Base.C.userCount, i + 1), Base.Format.userId(i));
+        }
+        for (long i = 0; i < Base.C.tourCount; i++) {
+            assertEquals(legacyFormat("tour", Base.C.tourCount, i + 1), Base.Format.tourId(i));
+        }
+        for (long i = 0; i < Base.C.bookingCount; i++) {
+            assertEquals(legacyFormat("booking", Base.C.bookingCount, i + 1), Base.Format.bookingId(i));
+        }
+        for (long i = 0; i < Base.data.reviewCount; i++) {
+            assertEquals(legacyFormat("review", Base.data.reviewCount, i + 1), Base.Format.reviewId(i));
+        }
+    }
+}
@@ -1,11 +1,19 @@
 import org.junit.Test;
-
-import java.time.OffsetDateTime;
-import java.util.Arrays;
-import java.util.HashMap;
+import util.Changefeed;
+import util.DataGenerator.Table;
+import util.Document;
+import util.NdjsonFile;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
 
 import static com.rethinkdb.RethinkDB.r;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class InsertData extends Base {
 
@@ -14,20 +22,7 @@ public class InsertData extends Base {
         db.recreateTable(S.users, S.userId);
         db.createIndex(S.users, S.internalId);
 
-        db.bulkInsert(S.users, C.userCount, iUser -> {
-
-            String userId = Format.userId(iUser);
-
-            HashMap<String, Object> rec = new HashMap<>();
-            rec.put(S.userId, userId);
-            rec.put("firstname", userId + "名");
-            rec.put("nickName", userId + "ニックネーム");
-            rec.put("surname", userId + "姓");
-            rec.put(S.internalId, userId + S.internalId);
-            rec.put(S.createdAt, OffsetDateTime.now());
-
-            return rec;
-        });
+        generateOrImport(S.users, () -> db.bulkInsert(S.users, data.indexCount(Table.users), (iRow, iUser) -> data.user(iUser)));
     }
 
     @Test
@@ -36,23 +31,7 @@ public class InsertData extends Base {
         db.createIndex(S.tours, S.userId);
         db.createIndex(S.tours, S.createdAt);
 
-        db.bulkInsert(S.tours, C.tourCount, iTour -> {
-
-            String tourId = Format.tourId(iTour);
-
-            long iConducteur = iTour % C.conducteurCount;
-            String conducteurId = Format.userId(iConducteur);
-
-            HashMap<String, Object> rec = new HashMap<>();
-            rec.put(S.tourId, tourId);
-            rec.put(S.userId, conducteurId);
-            rec.put("bagSize", "20Kg");
-            rec.put("seatsTotal", 3);
-            rec.put("seatsRemain", 3);
-            rec.put(S.createdAt, OffsetDateTime.now());
-
-            return rec;
-        });
+        generateOrImport(S.tours, () -> db.bulkInsert(S.tours, data.indexCount(Table.tours), (iRow, iTour) -> data.tour(iTour)));
     }
 
     @Test
@@ -65,50 +44,18 @@ public class InsertData extends Base {
 
         db.recreateTable(S._selfBookings, S.bookingId);
 
-        db.bulkInsert(S.bookings, C.bookingCount, iBooking -> {
-
-            String bookingId = Format.bookingId(iBooking);
-
-            long iTour = iBooking / C.bookingsPerTour;
-            String tourId = Format.tourId(iTour);
-
-            long iConducteur = iTour % C.conducteurCount;
-            String conducteurId = Format.userId(iConducteur);
-
-            long iPassenger = iBooking % C.passengerCount;
-            String passengerId = Format.userId(C.userCount - iPassenger - 1);
-
-            String bookingStatus = iBooking % C.bookingsPerTour < C.approvedBookingsPerTour ? S.approved : S.canceled;
-
-            HashMap<String, Object> rec = new HashMap<>();
-            rec.put(S.bookingId, bookingId);
-            rec.put(S.tourId, tourId);
-            rec.put(S.userId, passengerId);
-            rec.put(S.status, bookingStatus);
-            rec.put(S.createdAt, OffsetDateTime.now());
-
-            if (conducteurId.equals(passengerId)) {
-                db.bulkInsert(S._selfBookings, Arrays.asList(r.hashMap(S.bookingId, bookingId)));
-            }
-
-            return rec;
-        });
+        loadWithChangefeeds(S.bookings, () -> generateOrImport(S.bookings,
+                () -> db.bulkInsert(S.bookings, data.indexCount(Table.bookings), this::bookingRow), S._selfBookings));
     }
 
-    HashMap<String, Object> newReview(long iReview, String tourId, String byUserId, String ofUserId, String bookingId) {
-        String reviewId = Format.reviewId(iReview);
-
-        HashMap<String, Object> rec = new HashMap<>();
-        rec.put(S.reviewId, reviewId);
-        rec.put(S.tourId, tourId);
-        rec.put(S.ofUserId, ofUserId);
-        rec.put(S.byUserId, byUserId);
-        rec.put(S.comment, reviewId + " コメント from " + byUserId + " to " + ofUserId + " for " + tourId + " " + bookingId);
-        rec.put(S.starRank, iReview % 4 + 1);
-        rec.put(S.createdAt, OffsetDateTime.now());
+    /**
+     * @return booking of iBooking, its id is also written to _selfBookings if the booking is a self booking
+     */
+    Object bookingRow(long iRow, long iBooking) {
+        Document rec = data.booking(iBooking);
 
-        if (byUserId.equals(ofUserId)) {
-            db.bulkInsert(S._selfReviews, Arrays.asList(rec));
+        if (data.isSelfBooking(iBooking)) {
+            db.sideTable(S._selfBookings, S.bookings).add(r.hashMap(S.bookingId, rec.get(S.bookingId)));
         }
 
         return rec;
@@ -125,27 +72,85 @@ public class InsertData extends Base {
 
         db.recreateTable(S._selfReviews, S.reviewId);
 
-        db.bulkInsert(S.reviews, C.bookingCount, (iReview, iBooking) -> {
+        loadWithChangefeeds(S.reviews, () -> generateOrImport(S.reviews,
+                () -> db.bulkInsert(S.reviews, data.indexCount(Table.reviews), this::reviewRows), S._selfReviews));
+    }
+
+    /**
+     * @return reviews of iBooking or null to skip, they are also written to _selfReviews if the booking is a self booking
+     */
+    Object reviewRows(long iRow, long iBooking) {
+        Document[] recs = data.reviewsOfBooking(iBooking);
+        if (recs == null)
+            return null; //skip
+
+        if (data.isSelfBooking(iBooking)) {
+            for (Document rec : recs) {
+                db.sideTable(S._selfReviews, S.reviews).add(rec);
+            }
+        }
 
-            boolean isApprovedBooking = iBooking % C.bookingsPerTour < C.approvedBookingsPerTour;
-            if (!isApprovedBooking)
-                return null; //skip
+        return recs;
+    }
 
-            long iTour = iBooking / C.bookingsPerTour;
-            String tourId = Format.tourId(iTour);
+    /**
+     * run generate, or with C.importDataset load the table and its side tables from the NDJSON files of ExportData,
+     * so only the ingest is measured
+     *
+     * @return inserted row count of the table
+     */
+    long generateOrImport(String tableName, LongSupplier generate, String... sideTableNames) {
+        if (!C.importDataset) return generate.getAsLong();
+
+        long insertedCount = importTable(tableName);
+        for (String sideTableName : sideTableNames) {
+            importTable(sideTableName);
+        }
+        return insertedCount;
+    }
 
-            long iConducteur = iTour % C.conducteurCount;
-            String conducteurId = Format.userId(iConducteur);
+    long importTable(String tableName) {
+        Path file = datasetFile(tableName, false);
+        if (!Files.exists(file)) {
+            file = datasetFile(tableName, true);
+        }
+        long startTime = System.nanoTime();
+        try (NdjsonFile ndjson = NdjsonFile.open(file)) {
+            long insertedCount = ndjson.load(db, tableName);
+            long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+            logger.info("{} rows of {} imported to {}: {} rows/s", insertedCount, file, tableName, insertedCount * 1000 / millis);
+            return insertedCount;
+        }
+    }
 
-            long iPassenger = iBooking % C.passengerCount;
-            String passengerId = Format.userId(C.userCount - iPassenger - 1);
+    /**
+     * run load while C.changefeeds changefeeds of the table are open, then wait until every feed received all rows.
+     * Lags are recorded as "changefeed {table}" in the metrics.
+     */
+    void loadWithChangefeeds(String tableName, LongSupplier load) {
+        List<Changefeed> feeds = new ArrayList<>();
+        try {
+            for (int i = 0; i < C.changefeeds; i++) {
+                feeds.add(db.changefeed(tableName, S.createdAt));
+            }
 
-            String bookingId = Format.bookingId(iBooking);
+            long startTime = System.nanoTime();
+            long insertedCount = load.getAsLong();
+            long insertMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+            logger.info("{} rows inserted to {} with {} changefeeds: {} rows/s",
+                    insertedCount, tableName, feeds.size(), insertedCount * 1000 / insertMillis);
 
-            return new Object[]{
-                    newReview(iReview++, tourId, conducteurId, passengerId, bookingId)
-                    , newReview(iReview++, tourId, passengerId, conducteurId, bookingId)
-            };
-        });
+            for (Changefeed feed : feeds) {
+                assertTrue("changefeed of " + tableName + " received " + feed.count() + " of " + insertedCount,
+                        feed.await(insertedCount, TimeUnit.MINUTES.toMillis(1)));
+            }
+            if (!feeds.isEmpty()) {
+                long feedMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+                logger.info("{} changefeeds of {}: {} notifications/s each",
+                        feeds.size(), tableName, insertedCount * 1000 / feedMillis);
+            }
+        } finally {
+            feeds.forEach(Changefeed::close);
+        }
     }
 }
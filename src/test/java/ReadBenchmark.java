@@ -0,0 +1,201 @@
+import com.rethinkdb.gen.ast.ReqlExpr;
+import com.rethinkdb.net.Connection;
+import com.rethinkdb.net.Cursor;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.rethinkdb.RethinkDB.r;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Read workload over the data of InsertData: a weighted mix of queries run by readThreads threads.
+ * <p>
+ * With readTargetRate (total queries/s) each thread follows a fixed schedule and latency is measured from
+ * the scheduled start, so queries delayed by slow predecessors are counted (coordinated omission corrected).
+ * Without it threads run back to back and latency is the plain round trip.
+ * Latencies are recorded as "read {query}" in the Database metrics.
+ */
+public class ReadBenchmark extends Base {
+
+    static class R {
+        static final int readThreads = Integer.valueOf(System.getProperty("readThreads",
+                String.valueOf(8)));
+
+        static final double readTargetRate = Double.valueOf(System.getProperty("readTargetRate",
+                String.valueOf(0)));
+
+        static final int readSeconds = Integer.valueOf(System.getProperty("readSeconds",
+                String.valueOf(10)));
+
+        static final int readWarmupSeconds = Integer.valueOf(System.getProperty("readWarmupSeconds",
+                String.valueOf(2)));
+
+        static final String readMix = System.getProperty("readMix",
+                "getUser:20,toursByUserId:10,bookingsByTourId:20,bookingsByUserId:10,"
+                        + "reviewsByByUserId:10,bookingsByTourIdAndStatus:20,toursBetweenCreatedAt:10");
+
+        static final int readBetweenLimit = Integer.valueOf(System.getProperty("readBetweenLimit",
+                String.valueOf(100)));
+    }
+
+    static OffsetDateTime minCreatedAt;
+    static long createdAtSpanMillis;
+
+    enum Query {
+        getUser {
+            ReqlExpr build(ThreadLocalRandom rnd) {
+                return r.table(S.users).get(Format.userId(rnd.nextLong(C.userCount)));
+            }
+        },
+        toursByUserId {
+            ReqlExpr build(ThreadLocalRandom rnd) {
+                return r.table(S.tours).getAll(Format.userId(rnd.nextLong(C.conducteurCount))).optArg(S.index, S.userId);
+            }
+        },
+        bookingsByTourId {
+            ReqlExpr build(ThreadLocalRandom rnd) {
+                return r.table(S.bookings).getAll(Format.tourId(rnd.nextLong(data.bookingTourCount))).optArg(S.index, S.tourId);
+            }
+        },
+        bookingsByUserId {
+            ReqlExpr build(ThreadLocalRandom rnd) {
+                return r.table(S.bookings).getAll(Format.userId(C.userCount - 1 - rnd.nextLong(C.passengerCount))).optArg(S.index, S.userId);
+            }
+        },
+        reviewsByByUserId {
+            ReqlExpr build(ThreadLocalRandom rnd) {
+                return r.table(S.reviews).getAll(Format.userId(rnd.nextLong(C.userCount))).optArg(S.index, S.byUserId);
+            }
+        },
+        bookingsByTourIdAndStatus {
+            ReqlExpr build(ThreadLocalRandom rnd) {
+                return r.table(S.bookings).getAll(r.array(Format.tourId(rnd.nextLong(data.bookingTourCount)), S.approved))
+                        .optArg(S.index, S.tourIdAndStatus);
+            }
+        },
+        toursBetweenCreatedAt {
+            ReqlExpr build(ThreadLocalRandom rnd) {
+                long spanMillis = Math.max(1, createdAtSpanMillis);
+                OffsetDateTime from = minCreatedAt.plusNanos(TimeUnit.MILLISECONDS.toNanos(rnd.nextLong(spanMillis)));
+                return r.table(S.tours).between(from, from.plusNanos(TimeUnit.MILLISECONDS.toNanos(spanMillis / 100 + 1)))
+                        .optArg(S.index, S.createdAt)
+                        .limit(R.readBetweenLimit);
+            }
+        };
+
+        abstract ReqlExpr build(ThreadLocalRandom rnd);
+    }
+
+    /**
+     * @return queries repeated by weight of readMix, e.g. "getUser:2,bookingsByTourId:1"
+     */
+    static Query[] parseMix(String mix) {
+        List<Query> queries = new ArrayList<>();
+        for (String item : mix.split(",")) {
+            String[] nameAndWeight = item.trim().split(":");
+            Query query = Query.valueOf(nameAndWeight[0]);
+            int weight = nameAndWeight.length > 1 ? Integer.valueOf(nameAndWeight[1]) : 1;
+            for (int i = 0; i < weight; i++) {
+                queries.add(query);
+            }
+        }
+        return queries.toArray(new Query[0]);
+    }
+
+    static long run(Connection conn, Query query, ThreadLocalRandom rnd) {
+        Object res = query.build(rnd).run(conn);
+        if (res instanceof Cursor) {
+            long rowCount = 0;
+            try (Cursor cursor = (Cursor) res) {
+                for (Object unused : cursor) {
+                    rowCount++;
+                }
+            }
+            return rowCount;
+        }
+        return res instanceof List ? ((List) res).size() : res == null ? 0 : 1;
+    }
+
+    @Test
+    public void read_mix() throws Exception {
+        runMix();
+    }
+
+    /**
+     * @return queries/s of the measured seconds
+     */
+    long runMix() throws Exception {
+        Query[] mix = parseMix(R.readMix);
+
+        minCreatedAt = r.table(S.tours).min().optArg(S.index, S.createdAt).g(S.createdAt).run(db.c);
+        OffsetDateTime maxCreatedAt = r.table(S.tours).max().optArg(S.index, S.createdAt).g(S.createdAt).run(db.c);
+        createdAtSpanMillis = Duration.between(minCreatedAt, maxCreatedAt).toMillis();
+
+        long intervalNanos = R.readTargetRate > 0 ? (long) (1e9 * R.readThreads / R.readTargetRate) : 0;
+        logger.info("read mix {} by {} threads, {}", R.readMix, R.readThreads,
+                intervalNanos > 0 ? "target " + R.readTargetRate + " queries/s" : "no target rate");
+
+        AtomicLong queryCount = new AtomicLong();
+        AtomicLong errorCount = new AtomicLong();
+        long startNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(R.readWarmupSeconds);
+        long endNanos = startNanos + TimeUnit.SECONDS.toNanos(R.readSeconds);
+
+        ExecutorService executor = Executors.newFixedThreadPool(R.readThreads);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int iThread = 0; iThread < R.readThreads; iThread++) {
+            futures.add(executor.submit(() -> {
+                ThreadLocalRandom rnd = ThreadLocalRandom.current();
+                Connection conn = db.pool.borrow();
+                try {
+                    long intendedNanos = System.nanoTime();
+                    for (long now = intendedNanos; now < endNanos; now = System.nanoTime()) {
+                        if (intervalNanos > 0) {
+                            intendedNanos += intervalNanos;
+                            if (intendedNanos > now) {
+                                LockSupport.parkNanos(intendedNanos - now);
+                            }
+                        } else {
+                            intendedNanos = now;
+                        }
+
+                        Query query = mix[rnd.nextInt(mix.length)];
+                        try {
+                            long rowCount = run(conn, query, rnd);
+                            if (intendedNanos >= startNanos) {
+                                db.metrics.timer("read " + query).record(intendedNanos, rowCount, 0);
+                                queryCount.incrementAndGet();
+                            }
+                        } catch (RuntimeException e) {
+                            if (errorCount.incrementAndGet() == 1) {
+                                logger.error("{} failed", query, e);
+                            }
+                        }
+                    }
+                } finally {
+                    db.pool.release(conn);
+                }
+                return null;
+            }));
+        }
+        executor.shutdown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+
+        logger.info("{} queries in {} s, {} queries/s, {} errors",
+                queryCount.get(), R.readSeconds, queryCount.get() / Math.max(1, R.readSeconds), errorCount.get());
+        assertEquals("should no query fail", 0, errorCount.get());
+        return queryCount.get() / Math.max(1, R.readSeconds);
+    }
+}
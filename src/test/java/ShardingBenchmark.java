@@ -0,0 +1,81 @@
+import org.junit.Test;
+import util.Database;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scaling curve of the InsertData load and the ReadBenchmark read mix by the count of shards of all tables.
+ * <p>
+ * For each count of shardCounts the tables are recreated with that many shards, loaded, and read. The metrics
+ * are named with the count, e.g. "bulkInsert users 4 shards", and the tables are reconfigured to C.shards at the end.
+ * Shards are spread over the servers of the cluster, so it runs on one local server or several
+ * local server processes joined to it. The curve is logged and written to {metricsDir}/ShardingBenchmark-scaling.csv.
+ */
+public class ShardingBenchmark extends Base {
+
+    static final String shardCounts = System.getProperty("shardCounts", "1,2,4,8");
+    /**
+     * tables loaded by InsertData with their primary keys
+     */
+    static final String[][] tables = {{S.users, S.userId}, {S.tours, S.tourId}, {S.bookings, S.bookingId},
+            {S._selfBookings, S.bookingId}, {S.reviews, S.reviewId}, {S._selfReviews, S.reviewId}};
+
+    @Test
+    public void load_and_read_by_shards() throws Exception {
+        InsertData load = new InsertData();
+        ReadBenchmark read = new ReadBenchmark();
+        long rowCount = C.userCount + C.tourCount + C.bookingCount + data.reviewCount;
+        Map<Integer, long[]> curve = new LinkedHashMap<>(); //shards -> [load rows/s, read queries/s]
+
+        try {
+            for (String value : shardCounts.split(",")) {
+                int shards = Integer.valueOf(value.trim());
+                logger.info("load and read with {} shards", shards);
+                Database shardDb = newDatabase();
+                shardDb.shards = shards;
+                shardDb.metrics = db.metrics.tagged(shards + " shards");
+                load.db = shardDb;
+                read.db = shardDb;
+                try {
+                    long startTime = System.nanoTime();
+                    load.insert_data_to_users();
+                    load.insert_data_to_tours();
+                    load.insert_data_to_bookings();
+                    load.insert_data_to_reviews();
+                    long loadMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+
+                    curve.put(shards, new long[]{rowCount * 1000 / loadMillis, read.runMix()});
+                } finally {
+                    shardDb.close();
+                }
+            }
+        } finally {
+            //the data of the last run is kept for the following tests, with the shards of C
+            for (String[] table : tables) {
+                db.createTable(table[0], table[1]);
+            }
+        }
+
+        long[] first = curve.values().iterator().next();
+        Path file = Paths.get(System.getProperty("metricsDir", "build/metrics")).resolve("ShardingBenchmark-scaling.csv");
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+            out.println("shards,loadRowsPerSec,readQueriesPerSec");
+            curve.forEach((shards, rates) -> {
+                out.println(shards + "," + rates[0] + "," + rates[1]);
+                logger.info("{} shards: load {} rows/s ({}%), read {} queries/s ({}%)", shards,
+                        rates[0], rates[0] * 100 / Math.max(1, first[0]), rates[1], rates[1] * 100 / Math.max(1, first[1]));
+            });
+        } catch (IOException e) {
+            logger.warn("failed to write {}", file, e);
+        }
+    }
+}
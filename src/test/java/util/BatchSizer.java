@@ -0,0 +1,138 @@
+package util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.temporal.TemporalAccessor;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Adaptive batch size of one table.
+ * <p>
+ * After each insert the measured round-trip time and the estimated serialized size of the batch are
+ * converted to per-row cost, and the next batch size moves toward the size which meets both
+ * targetMillis and targetBytes. Each step changes the size by at most 2x to smooth out noisy round trips.
+ */
+public class BatchSizer {
+    static final Logger logger = LoggerFactory.getLogger(BatchSizer.class);
+
+    static final int SAMPLE_ROWS = 8;
+
+    public final String tableName;
+    public final long targetMillis;
+    public final long targetBytes;
+    public final int minRows;
+    public final int maxRows;
+
+    private volatile int batchRows;
+    private int minChosenRows = Integer.MAX_VALUE;
+    private int maxChosenRows = 0;
+
+    public BatchSizer(String tableName, int initialRows, long targetMillis, long targetBytes, int minRows, int maxRows) {
+        this.tableName = tableName;
+        this.targetMillis = targetMillis;
+        this.targetBytes = targetBytes;
+        this.minRows = minRows;
+        this.maxRows = maxRows;
+        this.batchRows = clamp(initialRows);
+    }
+
+    public int batchRows() {
+        return batchRows;
+    }
+
+    /**
+     * @param rowCount      row count of the batch
+     * @param bytes         estimated serialized size of the batch
+     * @param elapsedNanos  round-trip time of the insert
+     */
+    public synchronized void record(int rowCount, long bytes, long elapsedNanos) {
+        if (rowCount <= 0) return;
+
+        double nanosPerRow = Math.max(1, elapsedNanos) / (double) rowCount;
+        double bytesPerRow = Math.max(1, bytes) / (double) rowCount;
+        double desiredRows = Math.min(targetMillis * 1000000 / nanosPerRow, targetBytes / bytesPerRow);
+
+        int oldRows = batchRows;
+        int newRows = clamp((int) Math.max(oldRows / 2, Math.min(desiredRows, oldRows * 2.0)));
+        batchRows = newRows;
+
+        minChosenRows = Math.min(minChosenRows, newRows);
+        maxChosenRows = Math.max(maxChosenRows, newRows);
+
+        if (newRows != oldRows) {
+            logger.debug("batch size of {}: {} -> {} rows ({} ms, {} bytes/row)",
+                    tableName, oldRows, newRows, elapsedNanos / 1000000, (long) bytesPerRow);
+        }
+    }
+
+    public synchronized void logSummary() {
+        logger.info("batch size of {}: {} rows (min {}, max {})",
+                tableName, batchRows, maxChosenRows == 0 ? batchRows : minChosenRows, Math.max(maxChosenRows, batchRows));
+    }
+
+    private int clamp(int rows) {
+        return Math.max(minRows, Math.min(maxRows, rows));
+    }
+
+    /**
+     * estimate serialized size of a batch from up to {@link #SAMPLE_ROWS} evenly picked rows
+     */
+    public static long estimateBytes(List rowAry) {
+        int size = rowAry.size();
+        if (size == 0) return 0;
+
+        int step = Math.max(1, size / SAMPLE_ROWS);
+        long sampleBytes = 0;
+        int sampleCount = 0;
+        for (int i = 0; i < size; i += step) {
+            sampleBytes += estimateBytes(rowAry.get(i));
+            sampleCount++;
+        }
+        return sampleBytes * size / sampleCount;
+    }
+
+    /**
+     * rough JSON size of a row value, non-ASCII chars are counted as 3 bytes (UTF-8)
+     */
+    public static long estimateBytes(Object value) {
+        if (value == null) {
+            return 4;
+        } else if (value instanceof CharSequence) {
+            CharSequence str = (CharSequence) value;
+            long bytes = 2;
+            for (int i = 0, len = str.length(); i < len; i++) {
+                bytes += str.charAt(i) < 0x80 ? 1 : 3;
+            }
+            return bytes;
+        } else if (value instanceof Number) {
+            return 8;
+        } else if (value instanceof JsonBatch.Raw) {
+            return ((JsonBatch.Raw) value).json.length();
+        } else if (value instanceof Boolean) {
+            return 5;
+        } else if (value instanceof TemporalAccessor) {
+            return 64;
+        } else if (value instanceof Map) {
+            long bytes = 2;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                bytes += estimateBytes(String.valueOf(entry.getKey())) + 1 + estimateBytes(entry.getValue()) + 1;
+            }
+            return bytes;
+        } else if (value instanceof List) {
+            long bytes = 2;
+            for (Object item : (List) value) {
+                bytes += estimateBytes(item) + 1;
+            }
+            return bytes;
+        } else if (value instanceof Object[]) {
+            long bytes = 2;
+            for (Object item : (Object[]) value) {
+                bytes += estimateBytes(item) + 1;
+            }
+            return bytes;
+        }
+        return 16;
+    }
+}
@@ -0,0 +1,102 @@
+package util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.OffsetDateTime;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.rethinkdb.RethinkDB.r;
+
+/**
+ * Changefeed of a table consumed by a background thread, created by Database.changefeed().
+ * <p>
+ * The lag of each notification is measured from the time field of the new row, which must be set when
+ * the row is generated by the client, e.g. createdAt of {@link Timestamps#now()}. So it is the end-to-end lag
+ * including the time the row waits in its insert batch. Lags are recorded in the Database metrics, one row per notification.
+ */
+public class Changefeed implements AutoCloseable {
+    static final Logger logger = LoggerFactory.getLogger(Changefeed.class);
+
+    public final String tableName;
+    final String timeField;
+    final Metrics.Timer lag;
+    final Scan<Map<String, Object>> scan;
+    final Thread thread;
+    final AtomicLong count = new AtomicLong();
+    volatile RuntimeException error;
+
+    Changefeed(Database db, String tableName, String timeField, String metricName) {
+        this.tableName = tableName;
+        this.timeField = timeField;
+        this.lag = db.metrics.timer(metricName);
+        this.scan = db.<Map<String, Object>>scan(r.table(tableName).changes(), "changefeed-" + tableName).open();
+        this.thread = new Thread(this::consume, "changefeed-" + tableName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void consume() {
+        try {
+            for (Map<String, Object> change : scan) {
+                Map<String, Object> newVal = (Map<String, Object>) change.get("new_val");
+                Object time = newVal == null ? null : newVal.get(timeField);
+                if (time instanceof OffsetDateTime) {
+                    long lagMillis = System.currentTimeMillis() - ((OffsetDateTime) time).toInstant().toEpochMilli();
+                    lag.record(System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(lagMillis), 1, 0);
+                }
+                count.incrementAndGet();
+            }
+        } catch (RuntimeException e) {
+            error = e;
+        }
+    }
+
+    /**
+     * @return count of notifications received so far
+     */
+    public long count() {
+        return count.get();
+    }
+
+    /**
+     * wait until count notifications are received or timeoutMillis elapsed
+     *
+     * @return true if all were received
+     */
+    public boolean await(long count, long timeoutMillis) {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (this.count.get() < count && error == null && thread.isAlive()) {
+            if (System.currentTimeMillis() >= deadline) return false;
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        if (error != null) throw error;
+        return this.count.get() >= count;
+    }
+
+    /**
+     * stop the feed. The scan joins its reader, which returns the connection after its last read,
+     * then the consumer thread is joined
+     */
+    @Override
+    public void close() {
+        scan.close();
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (thread.isAlive()) {
+            logger.warn("consumer of changefeed {} did not stop", tableName);
+        }
+        logger.debug("changefeed of {} closed: {} notifications", tableName, count.get());
+    }
+}
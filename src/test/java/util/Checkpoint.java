@@ -0,0 +1,205 @@
+package util;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durable progress of a bulkInsert into a file of checkpointDir.
+ * <p>
+ * The callback indices are split in ranges, one per worker. For each range the file holds the callback index
+ * (and row index) before which every row is committed. Batches of a range may commit out of order
+ * (pipeline with in-flight inserts), so a range only advances over the contiguous prefix of committed batches.
+ * The file is replaced atomically and synced after an advance at most every {@link Database#checkpointIntervalMillis},
+ * and when the load finishes or fails. Side tables filled by the load are flushed right before, so their rows
+ * are never behind the file.
+ * <p>
+ * Rows of a callback split over two batches are sent again on resume, which is why resumed inserts
+ * use conflict handling on the primary key.
+ */
+class Checkpoint {
+    static final Logger logger = LoggerFactory.getLogger(Checkpoint.class);
+
+    final Database db;
+    final String tableName;
+    final Path file;
+    final long callingCount;
+    final Range[] ranges;
+    long savedNanos;
+
+    class Range {
+        final long from;
+        final long to;
+        long committed;     //callback index before which all rows are committed
+        long committedRows; //row index at committed
+        long sentSeq;
+        long committedSeq;
+        final Map<Long, long[]> pending = new HashMap<>();
+
+        Range(long from, long to, long committed, long committedRows) {
+            this.from = from;
+            this.to = to;
+            this.committed = committed;
+            this.committedRows = committedRows;
+        }
+
+        /**
+         * register a batch about to be sent
+         *
+         * @param next     callback index before which all rows are in this or earlier batches
+         * @param nextRows row index at next
+         * @return to be run when the batch is committed by the server
+         */
+        Runnable batch(long next, long nextRows) {
+            long seq;
+            synchronized (this) {
+                seq = sentSeq++;
+            }
+            return () -> commit(seq, next, nextRows);
+        }
+
+        void commit(long seq, long next, long nextRows) {
+            synchronized (this) {
+                pending.put(seq, new long[]{next, nextRows});
+                boolean advanced = false;
+                for (long[] done; (done = pending.remove(committedSeq)) != null; committedSeq++) {
+                    committed = done[0];
+                    committedRows = done[1];
+                    advanced = true;
+                }
+                if (!advanced) return;
+            }
+            saveIfDue();
+        }
+
+        boolean isDone() {
+            return committed >= to;
+        }
+    }
+
+    private Checkpoint(Database db, String tableName, Path file, long callingCount, List<long[]> ranges) {
+        this.db = db;
+        this.tableName = tableName;
+        this.file = file;
+        this.callingCount = callingCount;
+        this.ranges = new Range[ranges.size()];
+        for (int i = 0; i < this.ranges.length; i++) {
+            long[] range = ranges.get(i);
+            this.ranges[i] = new Range(range[0], range[1], range.length > 2 ? range[2] : range[0],
+                    range.length > 3 ? range[3] : range[0]);
+        }
+    }
+
+    /**
+     * @param ranges [from, to) of callback indices of each worker, used unless resumed
+     * @param resume continue from the file if any, otherwise start over
+     */
+    static Checkpoint open(Database db, Path dir, String tableName, long callingCount, List<long[]> ranges, boolean resume) {
+        Path file = dir.resolve(db.dbName + "." + tableName + ".checkpoint");
+        try {
+            if (resume && Files.exists(file)) {
+                Checkpoint checkpoint = load(db, tableName, file);
+                if (checkpoint.callingCount != callingCount) {
+                    throw new IllegalStateException("checkpoint " + file + " is of " + checkpoint.callingCount
+                            + " callbacks, not " + callingCount);
+                }
+                for (Range range : checkpoint.ranges) {
+                    logger.info("resume {} range [{}, {}) from {}", tableName, range.from, range.to, range.committed);
+                }
+                return checkpoint;
+            }
+            Files.createDirectories(dir);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        Checkpoint checkpoint = new Checkpoint(db, tableName, file, callingCount, ranges);
+        checkpoint.save();
+        return checkpoint;
+    }
+
+    static Checkpoint load(Database db, String tableName, Path file) throws IOException {
+        long callingCount = -1;
+        List<long[]> ranges = new ArrayList<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            String[] kv = line.split("=", 2);
+            if (kv[0].equals("callingCount")) {
+                callingCount = Long.parseLong(kv[1]);
+            } else if (kv[0].startsWith("range.")) {
+                String[] values = kv[1].split(",");
+                long[] range = new long[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    range[i] = Long.parseLong(values[i]);
+                }
+                ranges.add(range);
+            }
+        }
+        return new Checkpoint(db, tableName, file, callingCount, ranges);
+    }
+
+    synchronized void saveIfDue() {
+        if (System.nanoTime() - savedNanos >= TimeUnit.MILLISECONDS.toNanos(db.checkpointIntervalMillis)) {
+            save();
+        }
+    }
+
+    /**
+     * save the progress after the load finished or failed, errors of the save are attached to the error of the load if any
+     */
+    void finish(RuntimeException error) {
+        try {
+            save();
+        } catch (RuntimeException e) {
+            if (error == null) throw e;
+            error.addSuppressed(e);
+        }
+    }
+
+    /**
+     * write side table rows of committed callbacks of this table, then replace the file atomically
+     */
+    synchronized void save() {
+        db.flushSideTablesOf(tableName);
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("callingCount=").append(callingCount).append('\n');
+        for (int i = 0; i < ranges.length; i++) {
+            Range range = ranges[i];
+            synchronized (range) {
+                sb.append("range.").append(i).append('=').append(range.from).append(',').append(range.to)
+                        .append(',').append(range.committed).append(',').append(range.committedRows).append('\n');
+            }
+        }
+
+        Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buf = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+            while (buf.hasRemaining()) {
+                channel.write(buf);
+            }
+            channel.force(true);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        try {
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        savedNanos = System.nanoTime();
+    }
+}
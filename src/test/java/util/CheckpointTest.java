@@ -0,0 +1,108 @@
+package util;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CheckpointTest {
+    static final long CALLBACKS = 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    /**
+     * inserts into a set, the insert of batch number failAtBatch throws
+     */
+    static OfflineDatabase insertingInto(Set<Object> table, int failAtBatch) {
+        return new OfflineDatabase("test", failAtBatch) {
+            @Override
+            protected void inserted(String tableName, List<?> rows) {
+                table.addAll(rows);
+            }
+        };
+    }
+
+    /**
+     * 2 rows for each callback, except every 3rd callback which has none
+     */
+    static Object rowsOf(long i) {
+        return i % 3 == 2 ? null : new Object[]{i + "a", i + "b"};
+    }
+
+    void load_fail_and_resume(int workers, int pipelineDepth) {
+        Set<Object> table = ConcurrentHashMap.newKeySet();
+        Set<Long> calledBeforeFailure = ConcurrentHashMap.newKeySet();
+
+        OfflineDatabase db = insertingInto(table, 20);
+        db.checkpointDir = folder.getRoot().toPath();
+        db.batchRows = 5; //odd, so the rows of some callbacks are split over two batches
+        db.workers = workers;
+        db.pipelineDepth = pipelineDepth;
+        db.inFlightInserts = 2;
+        try {
+            db.bulkInsert("t", CALLBACKS, (iRow, i) -> {
+                calledBeforeFailure.add(i);
+                return rowsOf(i);
+            });
+            fail();
+        } catch (RuntimeException e) {
+            assertEquals("insert failed", e.getMessage());
+        }
+
+        AtomicInteger calledAfterResume = new AtomicInteger();
+        OfflineDatabase resumed = insertingInto(table, -1);
+        resumed.checkpointDir = db.checkpointDir;
+        resumed.resume = true;
+        resumed.batchRows = db.batchRows;
+        resumed.workers = workers;
+        resumed.bulkInsert("t", CALLBACKS, (iRow, i) -> {
+            calledAfterResume.incrementAndGet();
+            return rowsOf(i);
+        });
+
+        long expectedRows = 0;
+        for (long i = 0; i < CALLBACKS; i++) {
+            Object[] rows = (Object[]) rowsOf(i);
+            if (rows == null) continue;
+            expectedRows += rows.length;
+            for (Object row : rows) {
+                assertTrue("row " + row, table.contains(row));
+            }
+        }
+        assertEquals(expectedRows, table.size());
+        assertTrue("committed callbacks are skipped: " + calledAfterResume.get(),
+                calledAfterResume.get() < CALLBACKS - calledBeforeFailure.size() / 2);
+
+        //all done, a further resume calls nothing
+        AtomicInteger calledAfterDone = new AtomicInteger();
+        resumed.bulkInsert("t", CALLBACKS, (iRow, i) -> {
+            calledAfterDone.incrementAndGet();
+            return rowsOf(i);
+        });
+        assertEquals(0, calledAfterDone.get());
+    }
+
+    @Test
+    public void resume_sequential_load() {
+        load_fail_and_resume(1, 0);
+    }
+
+    @Test
+    public void resume_pipelined_load() {
+        load_fail_and_resume(1, 3);
+    }
+
+    @Test
+    public void resume_parallel_load() {
+        load_fail_and_resume(3, 0);
+    }
+}
@@ -0,0 +1,72 @@
+package util;
+
+import com.rethinkdb.net.Connection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Thread-safe pool of connections.
+ * <p>
+ * borrow() never blocks: it takes an idle connection or opens a new one, so nested borrows
+ * (e.g. a side table flush inside a load worker) can not dead lock. At most maxIdle connections are kept
+ * after release(), the others are closed. Closed connections are dropped on release, and idle ones closed
+ * meanwhile (e.g. by the server) are dropped on borrow.
+ */
+public class ConnectionPool implements AutoCloseable {
+    static final Logger logger = LoggerFactory.getLogger(ConnectionPool.class);
+
+    final Supplier<Connection> connector;
+    final int maxIdle;
+    final LinkedBlockingDeque<Connection> idle = new LinkedBlockingDeque<>();
+    final AtomicInteger openCount = new AtomicInteger();
+
+    public ConnectionPool(Supplier<Connection> connector, int maxIdle) {
+        this.connector = connector;
+        this.maxIdle = maxIdle;
+    }
+
+    public Connection borrow() {
+        Connection conn;
+        while ((conn = idle.pollFirst()) != null) {
+            if (conn.isOpen()) {
+                return conn;
+            }
+            logger.debug("drop idle connection closed by server, {} opened", openCount.decrementAndGet());
+        }
+        conn = connector.get();
+        if (conn != null) {
+            logger.debug("open connection, {} opened", openCount.incrementAndGet());
+        }
+        return conn;
+    }
+
+    public void release(Connection conn) {
+        if (conn == null) {
+            return;
+        }
+        if (!conn.isOpen()) {
+            openCount.decrementAndGet();
+            return;
+        }
+        if (idle.size() >= maxIdle || !idle.offerFirst(conn)) {
+            openCount.decrementAndGet();
+            conn.close();
+        }
+    }
+
+    public int openCount() {
+        return openCount.get();
+    }
+
+    @Override
+    public void close() {
+        for (Connection conn; (conn = idle.pollFirst()) != null; ) {
+            openCount.decrementAndGet();
+            conn.close();
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package util;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Generator of the test dataset. Every row is a pure function of its index, so any [from, to) slice
+ * of any table can be generated independently by multiple threads or processes.
+ * <p>
+ * Reviews are generated per booking: an approved booking has 2 reviews whose review index is
+ * computed from the booking index, other bookings have none.
+ */
+public class DataGenerator {
+
+    public enum Table {
+        users, tours, bookings, reviews
+    }
+
+    public static final Document.Schema userSchema = new Document.Schema(
+            "userId", "firstname", "nickName", "surname", "internalId", "createdAt");
+
+    public static final Document.Schema tourSchema = new Document.Schema(
+            "tourId", "userId", "bagSize", "seatsTotal", "seatsRemain", "createdAt");
+
+    public static final Document.Schema bookingSchema = new Document.Schema(
+            "bookingId", "tourId", "userId", "status", "createdAt");
+
+    public static final Document.Schema reviewSchema = new Document.Schema(
+            "reviewId", "tourId", "ofUserId", "byUserId", "comment", "starRank", "createdAt");
+
+    public final long userCount;
+    public final long conducteurCount;
+    public final long passengerCount;
+    public final long tourCount;
+    public final long bookingCount;
+    public final int bookingsPerTour;
+    public final int approvedBookingsPerTour;
+    public final long reviewCount;
+    /**
+     * count of tours which have bookings, the first ones
+     */
+    public final long bookingTourCount;
+    public final Timestamps timestamps;
+
+    final IdFormat userIdFormat;
+    final IdFormat tourIdFormat;
+    final IdFormat bookingIdFormat;
+    final IdFormat reviewIdFormat;
+
+    /**
+     * default createdAt of rows, uniform over 3 years since 2016
+     */
+    public static final Timestamps defaultTimestamps = Timestamps.uniform(
+            Instant.parse("2016-01-01T00:00:00Z"), Duration.ofDays(3 * 365));
+
+    public DataGenerator(long userCount, long conducteurCount, long passengerCount, long tourCount,
+                         long bookingCount, int bookingsPerTour, int approvedBookingsPerTour, long reviewCount) {
+        this(userCount, conducteurCount, passengerCount, tourCount, bookingCount, bookingsPerTour, approvedBookingsPerTour,
+                reviewCount, defaultTimestamps);
+    }
+
+    public DataGenerator(long userCount, long conducteurCount, long passengerCount, long tourCount,
+                         long bookingCount, int bookingsPerTour, int approvedBookingsPerTour, long reviewCount,
+                         Timestamps timestamps) {
+        this.timestamps = timestamps;
+        this.userCount = userCount;
+        this.conducteurCount = conducteurCount;
+        this.passengerCount = passengerCount;
+        this.tourCount = tourCount;
+        this.bookingCount = bookingCount;
+        this.bookingsPerTour = bookingsPerTour;
+        this.approvedBookingsPerTour = approvedBookingsPerTour;
+        this.reviewCount = reviewCount;
+        this.bookingTourCount = (bookingCount + bookingsPerTour - 1) / bookingsPerTour;
+
+        userIdFormat = new IdFormat("user", userCount);
+        tourIdFormat = new IdFormat("tour", tourCount);
+        bookingIdFormat = new IdFormat("booking", bookingCount);
+        reviewIdFormat = new IdFormat("review", reviewCount);
+    }
+
+    /**
+     * derive bookingsPerTour and reviewCount from the basic counts
+     */
+    public static DataGenerator of(long userCount, long conducteurCount, long passengerCount, long tourCount,
+                                   long bookingCount, int approvedBookingsPerTour) {
+        int bookingsPerTour = Math.max((int) ((bookingCount + tourCount - 1) / tourCount), approvedBookingsPerTour + 1/*non-approved*/);
+        long approvedBookingCount = approvedBookingsBefore(bookingCount, bookingsPerTour, approvedBookingsPerTour);
+        return new DataGenerator(userCount, conducteurCount, passengerCount, tourCount,
+                bookingCount, bookingsPerTour, approvedBookingsPerTour, approvedBookingCount * 2);
+    }
+
+    /**
+     * @return the same dataset with other createdAt
+     */
+    public DataGenerator withTimestamps(Timestamps timestamps) {
+        return new DataGenerator(userCount, conducteurCount, passengerCount, tourCount,
+                bookingCount, bookingsPerTour, approvedBookingsPerTour, reviewCount, timestamps);
+    }
+
+    public String userId(long iUser) {
+        return userIdFormat.format(iUser + 1);
+    }
+
+    public String tourId(long iTour) {
+        return tourIdFormat.format(iTour + 1);
+    }
+
+    public String bookingId(long iBooking) {
+        return bookingIdFormat.format(iBooking + 1);
+    }
+
+    public String reviewId(long iReview) {
+        return reviewIdFormat.format(iReview + 1);
+    }
+
+    public long tourOfBooking(long iBooking) {
+        return iBooking / bookingsPerTour;
+    }
+
+    public long conducteurOfTour(long iTour) {
+        return iTour % conducteurCount;
+    }
+
+    /**
+     * @return user index of the passenger, passengers are taken from the last users
+     */
+    public long passengerOfBooking(long iBooking) {
+        return userCount - iBooking % passengerCount - 1;
+    }
+
+    public boolean isApprovedBooking(long iBooking) {
+        return iBooking % bookingsPerTour < approvedBookingsPerTour;
+    }
+
+    public boolean isSelfBooking(long iBooking) {
+        return conducteurOfTour(tourOfBooking(iBooking)) == passengerOfBooking(iBooking);
+    }
+
+    /**
+     * @return count of approved bookings in [0, iBooking)
+     */
+    public long approvedBookingsBefore(long iBooking) {
+        return approvedBookingsBefore(iBooking, bookingsPerTour, approvedBookingsPerTour);
+    }
+
+    static long approvedBookingsBefore(long iBooking, int bookingsPerTour, int approvedBookingsPerTour) {
+        return iBooking / bookingsPerTour * approvedBookingsPerTour
+                + Math.min(iBooking % bookingsPerTour, approvedBookingsPerTour);
+    }
+
+    /**
+     * @return index of the first of the 2 reviews of an approved booking
+     */
+    public long firstReviewOfBooking(long iBooking) {
+        return approvedBookingsBefore(iBooking) * 2;
+    }
+
+    public Document user(long iUser) {
+        String userId = userId(iUser);
+        return userSchema.newDocument(
+                userId,
+                userId + "名",
+                userId + "ニックネーム",
+                userId + "姓",
+                userId + "internalId",
+                timestamps.at(iUser, userCount));
+    }
+
+    public Document tour(long iTour) {
+        return tourSchema.newDocument(
+                tourId(iTour),
+                userId(conducteurOfTour(iTour)),
+                "20Kg",
+                3,
+                3,
+                timestamps.at(iTour, tourCount));
+    }
+
+    public Document booking(long iBooking) {
+        return bookingSchema.newDocument(
+                bookingId(iBooking),
+                tourId(tourOfBooking(iBooking)),
+                userId(passengerOfBooking(iBooking)),
+                isApprovedBooking(iBooking) ? "approved" : "canceled",
+                timestamps.at(iBooking, bookingCount));
+    }
+
+    public Document review(long iReview, String tourId, String byUserId, String ofUserId, String bookingId) {
+        String reviewId = reviewId(iReview);
+        return reviewSchema.newDocument(
+                reviewId,
+                tourId,
+                ofUserId,
+                byUserId,
+                reviewId + " コメント from " + byUserId + " to " + ofUserId + " for " + tourId + " " + bookingId,
+                iReview % 4 + 1,
+                timestamps.at(iReview, reviewCount));
+    }
+
+    /**
+     * @return review by conducteur and review by passenger of an approved booking, or null for other bookings
+     */
+    public Document[] reviewsOfBooking(long iBooking) {
+        if (!isApprovedBooking(iBooking))
+            return null;
+
+        long iTour = tourOfBooking(iBooking);
+        String tourId = tourId(iTour);
+        String conducteurId = userId(conducteurOfTour(iTour));
+        String passengerId = userId(passengerOfBooking(iBooking));
+        String bookingId = bookingId(iBooking);
+        long iReview = firstReviewOfBooking(iBooking);
+
+        return new Document[]{
+                review(iReview, tourId, conducteurId, passengerId, bookingId)
+                , review(iReview + 1, tourId, passengerId, conducteurId, bookingId)
+        };
+    }
+
+    /**
+     * @return count of row indices of the table, for reviews it is the count of bookings
+     */
+    public long indexCount(Table table) {
+        switch (table) {
+            case users:
+                return userCount;
+            case tours:
+                return tourCount;
+            case bookings:
+            case reviews:
+                return bookingCount;
+        }
+        throw new IllegalArgumentException(table.name());
+    }
+
+    /**
+     * @return a Document, a Document array (reviews), or null if the index has no row
+     */
+    public Object rowsOf(Table table, long i) {
+        switch (table) {
+            case users:
+                return user(i);
+            case tours:
+                return tour(i);
+            case bookings:
+                return booking(i);
+            case reviews:
+                return reviewsOfBooking(i);
+        }
+        throw new IllegalArgumentException(table.name());
+    }
+
+    /**
+     * @return rows of index [from, to) of the table
+     */
+    public List<Document> slice(Table table, long from, long to) {
+        List<Document> rowAry = new ArrayList<>();
+        for (long i = from; i < to; i++) {
+            Object rows = rowsOf(table, i);
+            if (rows instanceof Document) {
+                rowAry.add((Document) rows);
+            } else if (rows != null) {
+                for (Document row : (Document[]) rows) {
+                    rowAry.add(row);
+                }
+            }
+        }
+        return rowAry;
+    }
+}
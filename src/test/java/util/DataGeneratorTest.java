@@ -0,0 +1,103 @@
+package util;
+
+import org.junit.Test;
+import util.DataGenerator.Table;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DataGeneratorTest {
+
+    static DataGenerator newGenerator(long userCount, long tourCount, long bookingCount, int approvedBookingsPerTour) {
+        return DataGenerator.of(userCount, (long) (userCount * 0.3f), (long) (userCount * 0.8f),
+                tourCount, bookingCount, approvedBookingsPerTour);
+    }
+
+    static List<String> keys(List<Document> rowAry) {
+        List<String> keys = new ArrayList<>();
+        for (Document row : rowAry) {
+            keys.add(row.entrySet().stream()
+                    .map(String::valueOf)
+                    .reduce("", String::concat));
+        }
+        return keys;
+    }
+
+    @Test
+    public void review_index_same_as_sequential() {
+        for (DataGenerator data : new DataGenerator[]{
+                newGenerator(100, 100, 200, 3),
+                newGenerator(100, 30, 205, 3),
+                newGenerator(50, 10, 101, 5)}) {
+
+            long iReview = 0;
+            for (long iBooking = 0; iBooking < data.bookingCount; iBooking++) {
+                Document[] reviews = data.reviewsOfBooking(iBooking);
+                if (reviews == null) continue;
+
+                assertEquals(data.reviewId(iReview++), reviews[0].get("reviewId"));
+                assertEquals(data.reviewId(iReview++), reviews[1].get("reviewId"));
+            }
+            assertEquals(data.reviewCount, iReview);
+        }
+    }
+
+    @Test
+    public void slices_same_as_whole() {
+        DataGenerator data = newGenerator(100, 30, 205, 3);
+        for (Table table : Table.values()) {
+            long count = data.indexCount(table);
+            List<Document> whole = data.slice(table, 0, count);
+
+            List<Document> slices = new ArrayList<>();
+            for (long from = 0, step = 7; from < count; from += step) {
+                slices.addAll(data.slice(table, from, Math.min(from + step, count)));
+            }
+            assertEquals(table.name(), keys(whole), keys(slices));
+        }
+    }
+
+    @Test
+    public void timestamps_in_span_and_increasing() {
+        Instant start = Instant.parse("2016-01-01T00:00:00Z");
+        Duration span = Duration.ofDays(365);
+        long count = 10000;
+        for (String spec : new String[]{"uniform", "bursty", "bursty:10:0.1", "recent", "recent:5"}) {
+            Timestamps timestamps = Timestamps.of(spec, start, span);
+            Instant prev = start;
+            for (long i = 0; i < count; i++) {
+                Instant t = timestamps.at(i, count).toInstant();
+                assertTrue(spec, !t.isBefore(prev) && t.isBefore(start.plus(span)));
+                assertEquals(spec, t, timestamps.at(i, count).toInstant());
+                prev = t;
+            }
+        }
+    }
+
+    @Test
+    public void timestamps_distributions() {
+        Instant start = Instant.parse("2016-01-01T00:00:00Z");
+        Duration span = Duration.ofDays(100);
+        long count = 10000;
+
+        //recent: most rows in the last half
+        Timestamps recent = Timestamps.recent(start, span, 3);
+        long lastHalf = 0;
+        for (long i = 0; i < count; i++) {
+            if (recent.at(i, count).toInstant().isAfter(start.plus(span.dividedBy(2)))) lastHalf++;
+        }
+        assertTrue("recent rows in last half: " + lastHalf, lastHalf > count * 0.8);
+
+        //bursty: 10 bursts of 1 day each, every row is in the first day of its 10 days period
+        Timestamps bursty = Timestamps.bursty(start, span, 10, 0.1);
+        for (long i = 0; i < count; i++) {
+            long day = Duration.between(start, bursty.at(i, count).toInstant()).toDays();
+            assertEquals("day " + day, 0, day % 10);
+        }
+    }
+}
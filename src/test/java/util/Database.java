@@ -1,90 +1,412 @@
 package util;
 
+import com.rethinkdb.ast.ReqlAst;
+import com.rethinkdb.gen.ast.Binary;
 import com.rethinkdb.net.Connection;
+import com.rethinkdb.net.Cursor;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 import static com.rethinkdb.RethinkDB.r;
 
 public class Database {
 
     public final String dbName;
+    public final String hostname;
+    public final int port;
+    /**
+     * connection for ad hoc queries of the caller thread. Database methods use connections of {@link #pool}
+     */
     public final Connection c;
+    /**
+     * connections borrowed and returned by each Database method, so a Database can be used by multiple threads
+     */
+    public final ConnectionPool pool;
     final Logger logger;
 
+    public static int maxIdleConnections = 16;
+    /**
+     * server of Database(dbName) and Database.of(dbName), e.g. a {@link StubServer}
+     */
+    public static String defaultHostname = "localhost";
+    public static int defaultPort = 28015;
+    static final Map<String, Database> shared = new ConcurrentHashMap<>();
+
     public int batchRows = 1000;
     public boolean throwErrorIfInsertSamePrimaryKey = true;
+    /**
+     * count of parallel workers of bulkInsert, each worker uses its own connection. 1 means insert in calling thread
+     */
+    public int workers = 1;
+    /**
+     * count of ready batches which may wait for being inserted while RowProvider prepares next batches. 0 means no pipeline
+     */
+    public int pipelineDepth = 0;
+    /**
+     * count of concurrent insert requests of pipeline, each on its own connection, see {@link #pipelineDepth}
+     */
+    public int inFlightInserts = 1;
+    /**
+     * adjust batch size of each table toward {@link #targetBatchMillis} and {@link #targetBatchBytes},
+     * starting from {@link #batchRows}
+     */
+    public boolean adaptiveBatch = false;
+    public long targetBatchMillis = 100;
+    public long targetBatchBytes = 1 << 20;
+    public int minBatchRows = 10;
+    public int maxBatchRows = 100000;
+
+    /**
+     * encode insert batches directly into JSON by {@link JsonBatch} instead of letting the driver convert each row.
+     * Batches of {@link JsonBatch.Raw} rows, e.g. of an {@link NdjsonFile}, are always encoded directly
+     */
+    public boolean directJson = false;
+
+    /**
+     * insert full batches of {@link #sideTable(String)} writers in background
+     */
+    public boolean asyncSideTables = false;
+
+    /**
+     * only record createIndex() calls and build the indexes after the next bulkInsert of the table,
+     * instead of maintaining them on every insert
+     */
+    public boolean deferIndexes = false;
+
+    /**
+     * shards and replicas of tables created by createTable(tableName, primaryKey)
+     */
+    public int shards = 1;
+    public int replicas = 1;
+
+    /**
+     * directory of {@link Checkpoint} files, which record the progress of each bulkInsert batch by batch. Null means no checkpoint
+     */
+    public Path checkpointDir = null;
+
+    /**
+     * min interval of writing a checkpoint file while its bulkInsert is running, it is always written at the end
+     */
+    public long checkpointIntervalMillis = 1000;
+
+    /**
+     * continue bulkInsert from its checkpoint, and keep existing tables in recreateTable()
+     */
+    public boolean resume = false;
+
+    /**
+     * conflict option of inserts ("error", "replace", "update"), null means "replace" with checkpointDir, otherwise the server default
+     */
+    public String insertConflict = null;
+
+    /**
+     * rows read ahead by the background thread of each {@link #scan(ReqlAst, String)}, 0 means no background thread
+     */
+    public int scanReadAhead = 1000;
+
+    /**
+     * max documents of each table cached by get() and getAll(), 0 means no cache
+     */
+    public int cacheMaxEntries = 0;
+    public boolean cacheAdmission = true;
+
+    /**
+     * fraction of cache hits compared with the server to measure staleness
+     */
+    public double cacheVerifyRate = 0.01;
+
+    /**
+     * latency and throughput of operations, shared by all Database instances unless replaced
+     */
+    public Metrics metrics = Metrics.shared;
+
+    final Map<String, BatchSizer> batchSizers = new ConcurrentHashMap<>();
+    final Map<String, SideTableWriter> sideTables = new ConcurrentHashMap<>();
+    final ThreadLocal<JsonBatch> jsonBatch = ThreadLocal.withInitial(JsonBatch::new);
+    final Map<String, Map<String, String[]>> deferredIndexes = new ConcurrentHashMap<>();
+    final Map<String, ReadCache> caches = new ConcurrentHashMap<>();
 
     public Database(String dbName) {
-        this.dbName = dbName;
-        c = Connection.build().db(dbName).connect();
-        logger = LoggerFactory.getLogger(Database.class);
+        this(dbName, defaultHostname, defaultPort);
+    }
+
+    public Database(String dbName, String hostname, int port) {
+        this(dbName, hostname, port, Connection.build().hostname(hostname).port(port).db(dbName).connect());
 
         logger.debug("create database {}", dbName);
-        r.branch(r.dbList().contains(dbName)
+        run(r.branch(r.dbList().contains(dbName)
                 , r.expr(true)
                 , r.dbCreate(dbName)
-        ).do_(unused -> r.db(dbName).wait_())
-                .run(c);
+        ));
+        long startTime = System.nanoTime();
+        run(r.db(dbName).wait_());
+        metrics.timer("wait").record(startTime);
+    }
+
+    /**
+     * use an existing connection without creating the database, also for subclasses which do not talk to a server
+     */
+    protected Database(String dbName, Connection c) {
+        this(dbName, defaultHostname, defaultPort, c);
+    }
+
+    Database(String dbName, String hostname, int port, Connection c) {
+        this.dbName = dbName;
+        this.hostname = hostname;
+        this.port = port;
+        this.c = c;
+        pool = new ConnectionPool(this::newConnection, maxIdleConnections);
+        logger = LoggerFactory.getLogger(Database.class);
+    }
+
+    /**
+     * @return the Database of dbName shared in this JVM, the database is created (bootstrapped) by the first call only
+     */
+    public static Database of(String dbName) {
+        return of(dbName, db -> {
+        });
+    }
+
+    /**
+     * @param configure applied once, when the first call creates the Database. Callers do not change the settings
+     *                  of the shared Database later, one which needs other settings builds its own Database
+     */
+    public static Database of(String dbName, Consumer<? super Database> configure) {
+        return shared.computeIfAbsent(dbName, unused -> {
+            Database db = new Database(dbName);
+            configure.accept(db);
+            return db;
+        });
+    }
+
+    /**
+     * close caches, side tables and connections of a Database which is not shared
+     */
+    public void close() {
+        closeCaches();
+        for (SideTableWriter writer : sideTables.values()) {
+            writer.close();
+        }
+        sideTables.clear();
+        pool.close();
+        c.close();
+    }
+
+    /**
+     * @return a new connection to the database, to be closed by caller
+     */
+    public Connection newConnection() {
+        return Connection.build().hostname(hostname).port(port).db(dbName).connect();
+    }
+
+    /**
+     * run query with a connection borrowed from pool
+     */
+    <T> T run(ReqlAst query) {
+        Connection conn = pool.borrow();
+        try {
+            return query.run(conn);
+        } finally {
+            pool.release(conn);
+        }
     }
 
     public void dropTable(String tableName) {
         logger.debug("dropTable table {}", tableName);
-        r.branch(r.tableList().contains(tableName)
+        deferredIndexes.remove(tableName);
+        closeTable(tableName);
+        run(r.branch(r.tableList().contains(tableName)
                 , r.tableDrop(tableName)
                 , r.expr(true)
-        )
-                .run(c);
+        ));
+    }
+
+    /**
+     * close the cache and the side table writer of a table about to be dropped, so the writer's pending inserts
+     * do not go to the new table
+     */
+    private void closeTable(String tableName) {
+        ReadCache cache = caches.remove(tableName);
+        if (cache != null) {
+            cache.close();
+        }
+        SideTableWriter writer = sideTables.remove(tableName);
+        if (writer != null) {
+            writer.close();
+        }
     }
 
     public void createTable(String tableName, String primaryKey) {
-        logger.debug("create table {}", tableName);
-        r.branch(r.tableList().contains(tableName)
+        createTable(tableName, primaryKey, shards, replicas);
+    }
+
+    /**
+     * create table if not exists, an existing table of other primary key is dropped, one of other shards or replicas is reconfigured
+     */
+    public void createTable(String tableName, String primaryKey, int shards, int replicas) {
+        logger.debug("create table {} with {} shards and {} replicas", tableName, shards, replicas);
+        run(r.branch(r.tableList().contains(tableName)
                         .and(r.not(r.table(tableName).info().g("primary_key").eq(primaryKey)))
                 , r.tableDrop(tableName)
                 , r.expr(true)
         ).do_(unused ->
                 r.branch(r.tableList().contains(tableName)
-                        , r.expr(true)
+                        , r.table(tableName).config().g("shards").do_(shardAry ->
+                                r.branch(shardAry.count().eq(shards).and(shardAry.nth(0).g("replicas").count().eq(replicas))
+                                        , r.expr(true)
+                                        , r.table(tableName).reconfigure().optArg("shards", shards).optArg("replicas", replicas)
+                                ))
                         , r.tableCreate(tableName).optArg("primary_key", primaryKey)
+                                .optArg("shards", shards).optArg("replicas", replicas)
                 )
-        ).do_(unused -> r.table(tableName).wait_())
-                .run(c);
+        ));
+        long startTime = System.nanoTime();
+        run(r.table(tableName).wait_());
+        metrics.timer("wait").record(startTime);
     }
 
     public void recreateTable(String tableName, String primaryKey) {
+        recreateTable(tableName, primaryKey, shards, replicas);
+    }
+
+    public void recreateTable(String tableName, String primaryKey, int shards, int replicas) {
+        if (resume) {
+            logger.info("resume: keep table {}", tableName);
+            createTable(tableName, primaryKey, shards, replicas);
+            return;
+        }
         dropTable(tableName);
-        createTable(tableName, primaryKey);
+        createTable(tableName, primaryKey, shards, replicas);
     }
 
     public void createIndex(String tableName, String indexColumn) {
         logger.debug("create index {} for {} of table {}", indexColumn, indexColumn, tableName);
-        r.branch(r.table(tableName).indexList().contains(indexColumn)
-                , r.expr(true)
-                , r.table(tableName).indexCreate(indexColumn)
-        ).do_(unused -> r.table(tableName).indexWait(indexColumn))
-                .run(c);
+        if (defer(tableName, indexColumn, null)) return;
+        indexCreate(tableName, indexColumn, null);
+        indexWait(tableName, indexColumn);
     }
 
     public void createIndex(String tableName, String indexName, String[] columnNames) {
         logger.debug("create index {} for {} of table {}", indexName, columnNames, tableName);
-        r.branch(r.table(tableName).indexList().contains(indexName)
+        if (defer(tableName, indexName, columnNames)) return;
+        indexCreate(tableName, indexName, columnNames);
+        indexWait(tableName, indexName);
+    }
+
+    /**
+     * @param columnNames columns of a compound index, null for the single column indexName
+     */
+    void indexCreate(String tableName, String indexName, String[] columnNames) {
+        long startTime = System.nanoTime();
+        run(r.branch(r.table(tableName).indexList().contains(indexName)
                 , r.expr(true)
-                , r.table(tableName).indexCreate(indexName,
+                , columnNames == null
+                        ? r.table(tableName).indexCreate(indexName)
+                        : r.table(tableName).indexCreate(indexName,
                         row -> Arrays.stream(columnNames).map(columnName -> row.g(columnName)).toArray())
-        ).do_(unused -> r.table(tableName).indexWait(indexName))
-                .run(c);
+        ));
+        metrics.timer("createIndex").record(startTime);
+    }
+
+    private boolean defer(String tableName, String indexName, String[] columnNames) {
+        if (!deferIndexes) return false;
+        deferredIndexes.computeIfAbsent(tableName, unused -> Collections.synchronizedMap(new LinkedHashMap<>()))
+                .put(indexName, columnNames);
+        logger.debug("index {} of table {} deferred", indexName, tableName);
+        return true;
+    }
+
+    /**
+     * create all deferred indexes of table at once and wait for them, the server builds them concurrently
+     *
+     * @return count of built indexes
+     */
+    public int buildDeferredIndexes(String tableName) {
+        Map<String, String[]> indexes = deferredIndexes.remove(tableName);
+        if (indexes == null || indexes.isEmpty()) return 0;
+
+        logger.debug("build {} deferred indexes of table {}", indexes.size(), tableName);
+        long startTime = System.nanoTime();
+        synchronized (indexes) {
+            indexes.forEach((indexName, columnNames) -> indexCreate(tableName, indexName, columnNames));
+        }
+        long waitStartTime = System.nanoTime();
+        run(r.table(tableName).indexWait());
+        metrics.timer("indexWait").record(waitStartTime);
+        metrics.timer("buildDeferredIndexes " + tableName).record(startTime);
+        return indexes.size();
+    }
+
+    /**
+     * build the deferred indexes of a table just loaded by bulkInsert, and compare load time with index build time
+     */
+    void afterLoad(String tableName, long loadStartTime, long insertedCount) {
+        if (!deferredIndexes.containsKey(tableName)) return;
+        long loadMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - loadStartTime);
+        long startTime = System.nanoTime();
+        int indexCount = buildDeferredIndexes(tableName);
+        logger.info("table {}: {} rows loaded in {} ms, then {} indexes built in {} ms",
+                tableName, insertedCount, loadMillis, indexCount, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+    }
+
+    void indexWait(String tableName, String indexName) {
+        long startTime = System.nanoTime();
+        run(r.table(tableName).indexWait(indexName));
+        metrics.timer("indexWait").record(startTime);
     }
 
     public int bulkInsert(String tableName, List rowAry) {
+        Connection conn = pool.borrow();
+        try {
+            return bulkInsert(conn, tableName, rowAry, -1);
+        } finally {
+            pool.release(conn);
+        }
+    }
+
+    /**
+     * insert a batch, its size is recorded in the metrics if encoded directly or estimated by the caller
+     *
+     * @param estimatedBytes size estimated by {@link BatchSizer#estimateBytes(List)}, or -1 if not estimated
+     */
+    protected int bulkInsert(Connection c, String tableName, List rowAry, long estimatedBytes) {
         logger.debug("insert {} rows to {}", rowAry.size(), tableName);
-        Map<String, Object> res = r.table(tableName).insert(rowAry).run(c);
+        Object rows = rowAry;
+        long bytes = Math.max(0, estimatedBytes);
+        if (directJson || !rowAry.isEmpty() && rowAry.get(0) instanceof JsonBatch.Raw) {
+            JsonBatch batch = jsonBatch.get();
+            if (batch.encode(rowAry)) {
+                rows = batch;
+                bytes = batch.utf8Length();
+            }
+        }
+        String conflict = insertConflict != null ? insertConflict : checkpointDir != null ? "replace" : null;
+        long startTime = System.nanoTime();
+        Map<String, Object> res = (conflict == null ? r.table(tableName).insert(rows)
+                : r.table(tableName).insert(rows).optArg("conflict", conflict)).run(c);
         int insertedCount = ((Long) res.get("inserted")).intValue();
+        if (conflict != null) {
+            //rows written again by a resumed load count as inserted
+            insertedCount += ((Long) res.get("replaced")).intValue() + ((Long) res.get("unchanged")).intValue();
+        }
+        metrics.timer("bulkInsert " + tableName).record(startTime, insertedCount, bytes);
         if (throwErrorIfInsertSamePrimaryKey && insertedCount < rowAry.size()) {
             throw new RuntimeException(res.get("first_error").toString());
         }
@@ -92,6 +414,30 @@ public class Database {
         return insertedCount;
     }
 
+    /**
+     * insert a batch and feed its round-trip time and estimated size to sizer if not null.
+     * A batch smaller than the current size of sizer, e.g. the last one of a load, is not fed,
+     * so it does not skew the size the next load of the table starts from
+     */
+    int insertBatch(Connection c, String tableName, List rowAry, BatchSizer sizer) {
+        if (sizer == null || rowAry.size() < sizer.batchRows()) {
+            return bulkInsert(c, tableName, rowAry, -1);
+        }
+        long bytes = BatchSizer.estimateBytes(rowAry);
+        long startTime = System.nanoTime();
+        int insertedCount = bulkInsert(c, tableName, rowAry, bytes);
+        sizer.record(rowAry.size(), bytes, System.nanoTime() - startTime);
+        return insertedCount;
+    }
+
+    /**
+     * @return the adaptive batch sizer of the table, which is kept across bulkInsert calls
+     */
+    public BatchSizer batchSizer(String tableName) {
+        return batchSizers.computeIfAbsent(tableName, unused ->
+                new BatchSizer(tableName, batchRows, targetBatchMillis, targetBatchBytes, minBatchRows, maxBatchRows));
+    }
+
     public interface RowProvider {
         /**
          * provide row data or row data array
@@ -113,6 +459,14 @@ public class Database {
         Object getDataOfRow(long iRow, long iCallback);
     }
 
+    /**
+     * @return checkpoint of a bulkInsert of table, resumed if resume is set, or null without checkpointDir
+     */
+    Checkpoint checkpoint(String tableName, long callingCountOfRowProvider, List<long[]> ranges) {
+        if (checkpointDir == null) return null;
+        return Checkpoint.open(this, checkpointDir, tableName, callingCountOfRowProvider, ranges, resume);
+    }
+
     /**
      * Bulk insert
      *
@@ -122,44 +476,221 @@ public class Database {
      * @return inserted row count
      */
     public long bulkInsert(String tableName, long callingCountOfRowProvider, RowProvider2 rowProvider) {
+        if (workers > 1 && callingCountOfRowProvider > 1) {
+            return bulkInsertParallel(tableName, callingCountOfRowProvider, rowProvider, workers);
+        }
         logger.debug("bulkInsert to table {}", tableName);
+
+        long startTime = System.nanoTime();
+        long insertedCount = 0;
+        RuntimeException error = null;
+        Checkpoint checkpoint = null;
+        Connection conn = pool.borrow();
+        try {
+            checkpoint = checkpoint(tableName, callingCountOfRowProvider,
+                    Collections.singletonList(new long[]{0, callingCountOfRowProvider}));
+            AtomicBoolean aborted = new AtomicBoolean();
+            if (checkpoint == null) {
+                insertedCount = insertRange(conn, tableName, 0, callingCountOfRowProvider, 0, rowProvider, aborted, null);
+            } else {
+                for (Checkpoint.Range range : checkpoint.ranges) {
+                    if (range.isDone() || aborted.get()) continue;
+                    insertedCount += insertRange(conn, tableName, range.committed, range.to, range.committedRows,
+                            rowProvider, aborted, range);
+                }
+            }
+        } catch (RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            pool.release(conn);
+            if (checkpoint != null) {
+                checkpoint.finish(error);
+            }
+            flushSideTables(error);
+        }
+
+        logger.debug("bulkInsert done: {} rows inserted to {}", insertedCount, tableName);
+        afterLoad(tableName, startTime, insertedCount);
+        return insertedCount;
+    }
+
+    /**
+     * Bulk insert by parallel workers, each worker uses its own connection and calls rowProvider
+     * for a continuous sub range of [0, callingCountOfRowProvider).
+     * <p>
+     * The iRow passed to rowProvider starts from the first iCallback of the sub range,
+     * so it is only exact when rowProvider returns a single row per call.
+     * Abort (false) stops all workers, rows already sent by other workers are kept.
+     *
+     * @param tableName                 table name
+     * @param callingCountOfRowProvider the count of calling RowProvider
+     * @param rowProvider               a callback to return single or array of row data. Null means skip, false means abort.
+     *                                  It will be called from multiple threads
+     * @param workerCount               count of workers
+     * @return inserted row count
+     */
+    public long bulkInsertParallel(String tableName, long callingCountOfRowProvider, RowProvider2 rowProvider, int workerCount) {
+        logger.debug("bulkInsert to table {} by {} workers", tableName, workerCount);
+
+        long rangeSize = (callingCountOfRowProvider + workerCount - 1) / workerCount;
+        List<long[]> ranges = new ArrayList<>(workerCount);
+        for (int iWorker = 0; iWorker < workerCount; iWorker++) {
+            long from = Math.min(iWorker * rangeSize, callingCountOfRowProvider);
+            ranges.add(new long[]{from, Math.min(from + rangeSize, callingCountOfRowProvider)});
+        }
+        Checkpoint checkpoint = checkpoint(tableName, callingCountOfRowProvider, ranges);
+
+        AtomicBoolean aborted = new AtomicBoolean();
+        AtomicInteger threadSeq = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(workerCount,
+                runnable -> new Thread(runnable, "bulkInsert-" + threadSeq.incrementAndGet()));
+
+        long startTime = System.nanoTime();
+        List<Future<Long>> futures = new ArrayList<>(workerCount);
+        for (int iWorker = 0; iWorker < (checkpoint == null ? ranges.size() : checkpoint.ranges.length); iWorker++) {
+            Checkpoint.Range range = checkpoint == null ? null : checkpoint.ranges[iWorker];
+            if (range != null && range.isDone()) continue;
+            long from = range == null ? ranges.get(iWorker)[0] : range.committed;
+            long to = range == null ? ranges.get(iWorker)[1] : range.to;
+            long iRow = range == null ? from : range.committedRows;
+            int workerNo = iWorker;
+
+            futures.add(executor.submit(() -> {
+                long workerStartTime = System.nanoTime();
+                long workerInsertedCount;
+                Connection workerConnection = pool.borrow();
+                try {
+                    workerInsertedCount = insertRange(workerConnection, tableName, from, to, iRow, rowProvider, aborted, range);
+                } catch (RuntimeException e) {
+                    aborted.set(true);
+                    throw e;
+                } finally {
+                    pool.release(workerConnection);
+                }
+                long elapsedMillis = Math.max(1, (System.nanoTime() - workerStartTime) / 1000000);
+                logger.info("worker {}: {} rows inserted to {} in {} ms, {} rows/s",
+                        workerNo, workerInsertedCount, tableName, elapsedMillis, workerInsertedCount * 1000 / elapsedMillis);
+                return workerInsertedCount;
+            }));
+        }
+        executor.shutdown();
+
+        long insertedCount = 0;
+        RuntimeException error = null;
+        try {
+            for (Future<Long> future : futures) {
+                insertedCount += future.get();
+            }
+        } catch (InterruptedException e) {
+            aborted.set(true);
+            Thread.currentThread().interrupt();
+            throw error = new RuntimeException(e);
+        } catch (ExecutionException e) {
+            aborted.set(true);
+            throw error = (e.getCause() instanceof RuntimeException) ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+            if (checkpoint != null) {
+                checkpoint.finish(error);
+            }
+            flushSideTables(error);
+        }
+
+        long elapsedMillis = Math.max(1, (System.nanoTime() - startTime) / 1000000);
+        logger.info("bulkInsert done: {} rows inserted to {} by {} workers in {} ms, {} rows/s",
+                insertedCount, tableName, workerCount, elapsedMillis, insertedCount * 1000 / elapsedMillis);
+        afterLoad(tableName, startTime, insertedCount);
+        return insertedCount;
+    }
+
+    /**
+     * call rowProvider for iCallback in [from, to) and insert rows in batches
+     *
+     * @param aborted shared flag to stop other callers when rowProvider returned false
+     * @param range   progress of [from, to) to be committed batch by batch, or null
+     */
+    long insertRange(Connection c, String tableName, long from, long to, long iRow, RowProvider2 rowProvider,
+                     AtomicBoolean aborted, Checkpoint.Range range) {
         logger.debug(" prepare rows");
 
         long insertedCount = 0;
-        long iRow = 0;
         Object[] ary1 = new Object[1];
+        long next = from;     //callback index before which all rows are in rowAry or sent
+        long nextRows = iRow; //row index at next
 
-        int batchRows = this.batchRows;
+        BatchSizer sizer = adaptiveBatch ? batchSizer(tableName) : null;
+        int batchRows = sizer != null ? sizer.batchRows() : this.batchRows;
         ArrayList<Object> rowAry = new ArrayList<>(batchRows);
 
-        for (long i = 0; i < callingCountOfRowProvider; i++) {
-
-            Object row = ary1[0] = rowProvider.getDataOfRow(iRow, i);
+        InsertPipeline pipeline = pipelineDepth > 0
+                ? new InsertPipeline(this, tableName, pipelineDepth, Math.max(1, inFlightInserts), sizer) : null;
+        try {
+            for (long i = from; i < to && !aborted.get(); i++) {
 
-            if (row == null) continue;
-            if (row.equals(false)) break;
+                Object row = ary1[0] = rowProvider.getDataOfRow(iRow, i);
 
-            List _ary = (row instanceof List) ? (List) row
-                    : Arrays.asList((row instanceof Object[]) ? (Object[]) row : ary1);
+                if (row == null) {
+                    next = i + 1;
+                    nextRows = iRow;
+                    continue;
+                }
+                if (row.equals(false)) {
+                    aborted.set(true);
+                    break;
+                }
 
-            for (Object _row : _ary) {
+                List _ary = (row instanceof List) ? (List) row
+                        : Arrays.asList((row instanceof Object[]) ? (Object[]) row : ary1);
 
-                rowAry.add(_row);
-                iRow++;
+                for (int k = 0, n = _ary.size(); k < n; k++) {
 
-                if (rowAry.size() == batchRows) {
-                    insertedCount += bulkInsert(tableName, rowAry);
+                    rowAry.add(_ary.get(k));
+                    iRow++;
+                    if (k == n - 1) {
+                        next = i + 1;
+                        nextRows = iRow;
+                    }
 
-                    rowAry.clear();
-                    logger.debug(" prepare rows");
+                    if (rowAry.size() >= batchRows) {
+                        Runnable committed = range == null ? null : range.batch(next, nextRows);
+                        if (pipeline != null) {
+                            pipeline.put(rowAry, committed);
+                            rowAry = new ArrayList<>(batchRows);
+                        } else {
+                            insertedCount += insertBatch(c, tableName, rowAry, sizer);
+                            rowAry.clear();
+                            if (committed != null) committed.run();
+                        }
+                        if (sizer != null) {
+                            batchRows = sizer.batchRows();
+                        }
+                        logger.debug(" prepare rows");
+                    }
                 }
             }
-        }
 
-        if (rowAry.size() > 0) {
-            insertedCount += bulkInsert(tableName, rowAry);
+            Runnable committed = range == null ? null : range.batch(next, nextRows);
+            if (rowAry.size() > 0) {
+                if (pipeline != null) {
+                    pipeline.put(rowAry, committed);
+                    committed = null;
+                } else {
+                    insertedCount += insertBatch(c, tableName, rowAry, sizer);
+                }
+            }
+            if (pipeline != null) {
+                insertedCount += pipeline.finish();
+            }
+            if (committed != null) committed.run();
+            if (sizer != null) {
+                sizer.logSummary();
+            }
+        } finally {
+            if (pipeline != null) {
+                pipeline.cancel();
+            }
         }
-        logger.debug("bulkInsert done: {} rows inserted to {}", insertedCount, tableName);
         return insertedCount;
     }
 
@@ -167,15 +698,190 @@ public class Database {
         return bulkInsert(tableName, callingCountOfRowProvider, ((iRow, iCallback) -> rowProvider.getDataOfRow(iRow)));
     }
 
+    /**
+     * @return buffered writer of a secondary table, which is flushed when each bulkInsert finishes
+     */
+    public SideTableWriter sideTable(String tableName) {
+        return sideTable(tableName, null);
+    }
+
+    /**
+     * @param sourceTableName table whose bulkInsert fills the side table, its checkpoints flush the writer
+     * @return buffered writer of a secondary table, which is flushed when each bulkInsert finishes
+     */
+    public SideTableWriter sideTable(String tableName, String sourceTableName) {
+        return sideTables.computeIfAbsent(tableName, unused ->
+                new SideTableWriter(this, tableName, sourceTableName, batchRows, asyncSideTables));
+    }
+
+    /**
+     * flush the side tables filled by the bulkInsert of sourceTableName
+     */
+    void flushSideTablesOf(String sourceTableName) {
+        for (SideTableWriter writer : sideTables.values()) {
+            if (sourceTableName.equals(writer.sourceTableName)) {
+                writer.flush();
+            }
+        }
+    }
+
+    public void flushSideTables() {
+        for (SideTableWriter writer : sideTables.values()) {
+            long insertedCount = writer.flush();
+            logger.debug("flushed side table {}: {} rows inserted", writer.tableName, insertedCount);
+        }
+    }
+
+    /**
+     * flush side tables after bulkInsert, errors of the flush are attached to the error of bulkInsert if any
+     */
+    void flushSideTables(RuntimeException error) {
+        try {
+            flushSideTables();
+        } catch (RuntimeException e) {
+            if (error == null) throw e;
+            error.addSuppressed(e);
+        }
+    }
+
+    /**
+     * @return document of primary key, through the cache of table if cacheMaxEntries > 0
+     */
+    public Map<String, Object> get(String tableName, Object key) {
+        ReadCache cache = cache(tableName);
+        return cache != null ? cache.get(key) : run(r.table(tableName).get(key));
+    }
+
+    /**
+     * @return documents of primary keys, missing keys are skipped. Only the cache keeps the order of keys
+     */
+    @SuppressWarnings("unchecked")
+    public List<Map<String, Object>> getAll(String tableName, Object... keys) {
+        ReadCache cache = cache(tableName);
+        if (cache != null) {
+            return cache.getAll(keys);
+        }
+        List<Map<String, Object>> docs = new ArrayList<>(keys.length);
+        Object res = run(r.table(tableName).getAll(keys));
+        for (Object doc : res instanceof Cursor ? (Cursor<?>) res : (List<?>) res) {
+            docs.add((Map<String, Object>) doc);
+        }
+        return docs;
+    }
+
+    /**
+     * @return read-through cache of table, or null if cacheMaxEntries is 0
+     */
+    public ReadCache cache(String tableName) {
+        if (cacheMaxEntries <= 0) return null;
+        return cache(tableName, cacheMaxEntries);
+    }
+
+    /**
+     * @return read-through cache of table, created with maxEntries if the table has none, also if cacheMaxEntries is 0
+     */
+    public ReadCache cache(String tableName, int maxEntries) {
+        return caches.computeIfAbsent(tableName, unused ->
+                new ReadCache(this, tableName, maxEntries, cacheAdmission, cacheVerifyRate));
+    }
+
+    /**
+     * close caches, e.g. to compare with the uncached path
+     */
+    public void closeCaches() {
+        for (ReadCache cache : caches.values()) {
+            cache.logSummary();
+            cache.close();
+        }
+        caches.clear();
+    }
+
+    /**
+     * @return all rows of table in no particular order
+     */
+    public <T> Scan<T> scan(String tableName) {
+        return scan(r.table(tableName), tableName);
+    }
+
+    /**
+     * @return all rows of table ordered by the index
+     */
+    public <T> Scan<T> scan(String tableName, String index) {
+        return scan(r.table(tableName).orderBy().optArg("index", r.asc(index)), tableName + "." + index);
+    }
+
+    /**
+     * @return rows of table whose index value is in [lowerKey, upperKey), ordered by the index
+     */
+    public <T> Scan<T> scan(String tableName, String index, Object lowerKey, Object upperKey) {
+        return scan(r.table(tableName).between(lowerKey, upperKey).optArg("index", index)
+                .orderBy().optArg("index", r.asc(index)), tableName + "." + index);
+    }
+
+    /**
+     * @param query stream query, e.g. a table, an index range or a sequence derived from them
+     * @param name  name of the scan in metrics and thread names
+     */
+    public <T> Scan<T> scan(ReqlAst query, String name) {
+        return new Scan<T>(this, query, name).readAhead(scanReadAhead);
+    }
+
+    /**
+     * open a changefeed of table, the lag of notifications is recorded as "changefeed {table}"
+     *
+     * @param timeField field of the rows holding the time they were generated, e.g. createdAt
+     */
+    public Changefeed changefeed(String tableName, String timeField) {
+        return changefeed(tableName, timeField, "changefeed " + tableName);
+    }
+
+    public Changefeed changefeed(String tableName, String timeField, String metricName) {
+        return new Changefeed(this, tableName, timeField, metricName);
+    }
+
     public void deleteAllData(String tableName) {
         logger.debug("delete all data from {}", tableName);
-        Map<String, Object> res = r.table(tableName).delete().run(c);
+        long startTime = System.nanoTime();
+        Map<String, Object> res = run(r.table(tableName).delete());
+        metrics.timer("deleteAllData").record(startTime, (Long) res.get("deleted"), 0);
         logger.debug("done: {} rows deleted", res.get("deleted"));
     }
 
+    /**
+     * remove all rows by dropping and recreating the table, which is much faster than deleteAllData() on a large table.
+     * The primary key, count of shards and replicas, and secondary indexes are kept: index functions are
+     * restored from the function blobs of indexStatus(). Deferred indexes stay deferred.
+     */
+    @SuppressWarnings("unchecked")
+    public void truncate(String tableName) {
+        logger.debug("truncate table {}", tableName);
+        long startTime = System.nanoTime();
+        Map<String, Object> schema = run(r.expr(r.hashMap("primary_key", r.table(tableName).info().g("primary_key"))
+                .with("shards", r.table(tableName).config().g("shards"))
+                .with("indexes", r.table(tableName).indexStatus())));
+        String primaryKey = (String) schema.get("primary_key");
+        List<Map<String, Object>> shardAry = (List<Map<String, Object>>) schema.get("shards");
+        List<Map<String, Object>> indexes = (List<Map<String, Object>>) schema.get("indexes");
+
+        closeTable(tableName);
+        run(r.tableDrop(tableName));
+        createTable(tableName, primaryKey, shardAry.size(), ((List<?>) shardAry.get(0).get("replicas")).size());
+        for (Map<String, Object> index : indexes) {
+            run(r.table(tableName).indexCreate(index.get("index"), new Binary((byte[]) index.get("function")))
+                    .optArg("multi", index.get("multi")).optArg("geo", index.get("geo")));
+        }
+        if (!indexes.isEmpty()) {
+            run(r.table(tableName).indexWait());
+        }
+        metrics.timer("truncate").record(startTime);
+        logger.debug("done: table {} recreated with {} indexes", tableName, indexes.size());
+    }
+
     public long getTableRowCount(String tableName) {
         logger.debug("get row count of {}", tableName);
-        long rowCount = r.table(tableName).count().run(c);
+        long startTime = System.nanoTime();
+        long rowCount = run(r.table(tableName).count());
+        metrics.timer("getTableRowCount").record(startTime);
         logger.debug("done: {} rows", rowCount);
         return rowCount;
     }
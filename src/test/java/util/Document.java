@@ -0,0 +1,129 @@
+package util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.BiConsumer;
+
+/**
+ * Compact row data: field values in an array, field names in a {@link Schema} shared by all rows of a table.
+ * <p>
+ * Compared with a HashMap per row it costs 2 objects instead of a table plus one node per field,
+ * and it is still a Map, so the driver stores it as the same document.
+ */
+public final class Document extends AbstractMap<String, Object> {
+
+    public static final class Schema {
+        public final String[] keys;
+        private final HashMap<String, Integer> indexOfKey = new HashMap<>();
+
+        public Schema(String... keys) {
+            this.keys = keys;
+            for (int i = 0; i < keys.length; i++) {
+                indexOfKey.put(keys[i], i);
+            }
+        }
+
+        /**
+         * @param values field values in the order of keys, the array is used by the document without copying
+         */
+        public Document newDocument(Object... values) {
+            if (values.length != keys.length) {
+                throw new IllegalArgumentException("expect " + keys.length + " values but got " + values.length);
+            }
+            return new Document(this, values);
+        }
+
+        public int indexOf(Object key) {
+            Integer index = indexOfKey.get(key);
+            return index == null ? -1 : index;
+        }
+    }
+
+    public final Schema schema;
+    final Object[] values;
+
+    Document(Schema schema, Object[] values) {
+        this.schema = schema;
+        this.values = values;
+    }
+
+    public String key(int i) {
+        return schema.keys[i];
+    }
+
+    public Object value(int i) {
+        return values[i];
+    }
+
+    @Override
+    public int size() {
+        return values.length;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return schema.indexOf(key) >= 0;
+    }
+
+    @Override
+    public Object get(Object key) {
+        int i = schema.indexOf(key);
+        return i < 0 ? null : values[i];
+    }
+
+    /**
+     * replace value of an existing field, fields can not be added or removed
+     */
+    @Override
+    public Object put(String key, Object value) {
+        int i = schema.indexOf(key);
+        if (i < 0) {
+            throw new IllegalArgumentException("no field " + key + " in " + Arrays.toString(schema.keys));
+        }
+        Object old = values[i];
+        values[i] = value;
+        return old;
+    }
+
+    @Override
+    public void forEach(BiConsumer<? super String, ? super Object> action) {
+        for (int i = 0; i < values.length; i++) {
+            action.accept(schema.keys[i], values[i]);
+        }
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<Entry<String, Object>>() {
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                return new Iterator<Entry<String, Object>>() {
+                    int i = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return i < values.length;
+                    }
+
+                    @Override
+                    public Entry<String, Object> next() {
+                        if (i >= values.length) throw new NoSuchElementException();
+                        Entry<String, Object> entry = new SimpleImmutableEntry<>(schema.keys[i], values[i]);
+                        i++;
+                        return entry;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return values.length;
+            }
+        };
+    }
+}
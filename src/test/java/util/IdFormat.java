@@ -0,0 +1,44 @@
+package util;
+
+/**
+ * Zero-padded id like String.format(prefix + "%0" + width + "d", value),
+ * with prefix and width computed once and digits written directly.
+ */
+public final class IdFormat {
+    public final String prefix;
+    public final int width;
+    private final char[] prefixChars;
+
+    /**
+     * @param prefix   id prefix
+     * @param maxValue the largest count, its digit count is the padding width
+     */
+    public IdFormat(String prefix, long maxValue) {
+        this.prefix = prefix;
+        this.width = String.valueOf(maxValue).length();
+        this.prefixChars = prefix.toCharArray();
+    }
+
+    public String format(long value) {
+        if (value < 0) {
+            return String.format(prefix + "%0" + width + "d", value);
+        }
+
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+
+        int len = prefixChars.length + Math.max(width, digits);
+        char[] buf = new char[len];
+        System.arraycopy(prefixChars, 0, buf, 0, prefixChars.length);
+        for (int pos = prefixChars.length; pos < len - digits; pos++) {
+            buf[pos] = '0';
+        }
+        for (int pos = len - 1; pos >= len - digits; pos--) {
+            buf[pos] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return new String(buf);
+    }
+}
@@ -0,0 +1,149 @@
+package util;
+
+import com.rethinkdb.net.Connection;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded queue of ready batches between the thread calling RowProvider and the threads sending insert requests.
+ * <p>
+ * put() blocks when the queue is full (backpressure), so at most depth batches wait in memory
+ * and at most inFlight insert requests are sent concurrently. Each sending thread borrows its own connection
+ * from the pool of the Database, the driver does not support concurrent queries on one connection.
+ */
+class InsertPipeline {
+    private static final Batch END = new Batch(new ArrayList(0), null);
+
+    static class Batch {
+        final List rowAry;
+        final Runnable committed;
+
+        Batch(List rowAry, Runnable committed) {
+            this.rowAry = rowAry;
+            this.committed = committed;
+        }
+    }
+
+    private final Database db;
+    private final String tableName;
+    private final int inFlight;
+    private final BatchSizer sizer;
+    private final ArrayBlockingQueue<Batch> queue;
+    private final ExecutorService executor;
+    private final List<Future<Long>> consumers;
+    private volatile RuntimeException error;
+
+    InsertPipeline(Database db, String tableName, int depth, int inFlight, BatchSizer sizer) {
+        this.db = db;
+        this.tableName = tableName;
+        this.inFlight = inFlight;
+        this.sizer = sizer;
+        queue = new ArrayBlockingQueue<>(depth);
+
+        AtomicInteger threadSeq = new AtomicInteger();
+        String threadNamePrefix = Thread.currentThread().getName() + "-insert-";
+        executor = Executors.newFixedThreadPool(inFlight,
+                runnable -> new Thread(runnable, threadNamePrefix + threadSeq.incrementAndGet()));
+
+        consumers = new ArrayList<>(inFlight);
+        for (int i = 0; i < inFlight; i++) {
+            consumers.add(executor.submit(this::consume));
+        }
+    }
+
+    private long consume() throws InterruptedException {
+        long insertedCount = 0;
+        Connection c = db.pool.borrow();
+        try {
+            for (Batch batch; (batch = queue.take()) != END; ) {
+                try {
+                    insertedCount += db.insertBatch(c, tableName, batch.rowAry, sizer);
+                    if (batch.committed != null) {
+                        batch.committed.run();
+                    }
+                } catch (RuntimeException e) {
+                    error = e;
+                    throw e;
+                }
+            }
+        } finally {
+            db.pool.release(c);
+        }
+        return insertedCount;
+    }
+
+    /**
+     * queue a batch, wait while the queue is full. The batch must not be modified by caller afterwards
+     *
+     * @param committed run after the batch is inserted, or null
+     */
+    void put(List rowAry, Runnable committed) {
+        put(new Batch(rowAry, committed));
+    }
+
+    private void put(Batch batch) {
+        try {
+            while (!queue.offer(batch, 100, TimeUnit.MILLISECONDS)) {
+                checkError();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        checkError();
+    }
+
+    /**
+     * wait all queued batches to be inserted
+     *
+     * @return inserted row count
+     */
+    long finish() {
+        for (int i = 0; i < inFlight; i++) {
+            put(END);
+        }
+
+        long insertedCount = 0;
+        try {
+            for (Future<Long> consumer : consumers) {
+                insertedCount += consumer.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw (e.getCause() instanceof RuntimeException) ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return insertedCount;
+    }
+
+    /**
+     * stop consumers without waiting queued batches, used when producer failed. The inserts in flight are waited
+     * for, so their commits are in the checkpoint saved afterwards and no insert outlives the bulkInsert
+     */
+    void cancel() {
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void checkError() {
+        if (error != null) {
+            executor.shutdownNow();
+            throw error;
+        }
+    }
+}
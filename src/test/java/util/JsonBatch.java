@@ -0,0 +1,306 @@
+package util;
+
+import com.rethinkdb.ast.ReqlAst;
+import com.rethinkdb.gen.proto.TermType;
+import com.rethinkdb.model.Arguments;
+import com.rethinkdb.model.OptArgs;
+import org.json.simple.JSONAware;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A batch of rows encoded directly into ReQL JSON, used as the argument of insert.
+ * <p>
+ * The driver converts every Map/bean of a batch into a tree of ReqlAst terms and then into JSON.
+ * This term writes the whole MAKE_ARRAY of rows into a StringBuilder which is reused by the next
+ * encode(), and hands it to the driver serializer as an already encoded JSON value.
+ * Date times are written as TIME pseudo type. Rows may also be {@link Raw} JSON, e.g. lines of an {@link NdjsonFile},
+ * which are copied without building a Map for each row.
+ * <p>
+ * encodePlain() writes a single row as plain JSON instead, with arrays as JSON arrays rather than MAKE_ARRAY terms.
+ * <p>
+ * The driver serializes the query in the calling thread, so an instance can be reused
+ * once run() of the query returned, but must not be shared by threads.
+ */
+public final class JsonBatch extends ReqlAst implements JSONAware {
+    private static final int MAKE_ARRAY = TermType.MAKE_ARRAY.value;
+
+    private final StringBuilder json = new StringBuilder(64 * 1024);
+    private char[] chars = new char[0];
+    private boolean plain;
+
+    /**
+     * thrown for a value which can not be encoded, caught only by encode() and encodePlain()
+     */
+    private static final class UnsupportedValueException extends Exception {
+        UnsupportedValueException(Object value) {
+            super("unsupported value " + value + " of " + value.getClass().getName(), null, false, false);
+        }
+    }
+
+    /**
+     * a row already encoded as plain JSON
+     */
+    public static final class Raw {
+        public final String json;
+
+        public Raw(String json) {
+            this.json = json;
+        }
+
+        @Override
+        public String toString() {
+            return json;
+        }
+    }
+
+    public JsonBatch() {
+        super(TermType.MAKE_ARRAY, new Arguments(), new OptArgs());
+    }
+
+    /**
+     * @return false if a row contains a value type which is not supported, then the batch should be sent as List
+     */
+    public boolean encode(List rowAry) {
+        json.setLength(0);
+        plain = false;
+        try {
+            writeArray(rowAry);
+            return true;
+        } catch (UnsupportedValueException e) {
+            json.setLength(0);
+            return false;
+        }
+    }
+
+    /**
+     * encode a single row as plain JSON, e.g. a line of NDJSON
+     *
+     * @throws IllegalArgumentException if the row contains a value type which is not supported
+     */
+    public void encodePlain(Object row) {
+        json.setLength(0);
+        plain = true;
+        try {
+            writeValue(row);
+        } catch (UnsupportedValueException e) {
+            json.setLength(0);
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    /**
+     * write the encoded JSON to out without creating a String
+     */
+    public void writeTo(Writer out) throws IOException {
+        int length = json.length();
+        if (chars.length < length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+        }
+        json.getChars(0, length, chars, 0);
+        out.write(chars, 0, length);
+    }
+
+    /**
+     * @return length of the encoded JSON in chars
+     */
+    public int length() {
+        return json.length();
+    }
+
+    /**
+     * @return size of the encoded JSON in UTF-8, as sent to the server
+     */
+    public long utf8Length() {
+        long bytes = 0;
+        for (int i = 0, length = json.length(); i < length; i++) {
+            char ch = json.charAt(i);
+            if (ch < 0x80) {
+                bytes++;
+            } else if (ch < 0x800) {
+                bytes += 2;
+            } else if (Character.isHighSurrogate(ch) && i + 1 < length && Character.isLowSurrogate(json.charAt(i + 1))) {
+                bytes += 4;
+                i++;
+            } else {
+                bytes += 3;
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    protected Object build() {
+        return this;
+    }
+
+    @Override
+    public String toJSONString() {
+        return json.toString();
+    }
+
+    private void writeArray(List list) throws UnsupportedValueException {
+        openArray();
+        for (int i = 0, size = list.size(); i < size; i++) {
+            if (i > 0) json.append(',');
+            writeValue(list.get(i));
+        }
+        closeArray();
+    }
+
+    private void writeArray(Object[] ary) throws UnsupportedValueException {
+        openArray();
+        for (int i = 0; i < ary.length; i++) {
+            if (i > 0) json.append(',');
+            writeValue(ary[i]);
+        }
+        closeArray();
+    }
+
+    private void openArray() {
+        json.append(plain ? "[" : "[" + MAKE_ARRAY + ",[");
+    }
+
+    private void closeArray() {
+        json.append(plain ? "]" : "]]");
+    }
+
+    /**
+     * copy plain JSON, arrays outside of strings become MAKE_ARRAY terms unless plain
+     */
+    private void writeRaw(String raw) {
+        if (plain) {
+            json.append(raw);
+            return;
+        }
+        boolean inString = false;
+        for (int i = 0, len = raw.length(); i < len; i++) {
+            char ch = raw.charAt(i);
+            if (inString) {
+                json.append(ch);
+                if (ch == '\\') {
+                    json.append(raw.charAt(++i));
+                } else if (ch == '"') {
+                    inString = false;
+                }
+            } else if (ch == '[') {
+                openArray();
+            } else if (ch == ']') {
+                closeArray();
+            } else {
+                json.append(ch);
+                inString = ch == '"';
+            }
+        }
+    }
+
+    private void writeValue(Object value) throws UnsupportedValueException {
+        if (value == null) {
+            json.append("null");
+        } else if (value instanceof String) {
+            writeString((String) value);
+        } else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            json.append(((Number) value).longValue());
+        } else if (value instanceof Double || value instanceof Float) {
+            double d = ((Number) value).doubleValue();
+            if (Double.isNaN(d) || Double.isInfinite(d)) throw new UnsupportedValueException(value);
+            json.append(d);
+        } else if (value instanceof Boolean) {
+            json.append(((Boolean) value).booleanValue());
+        } else if (value instanceof Raw) {
+            writeRaw(((Raw) value).json);
+        } else if (value instanceof Document) {
+            Document doc = (Document) value;
+            json.append('{');
+            for (int i = 0, size = doc.size(); i < size; i++) {
+                if (i > 0) json.append(',');
+                writeString(doc.key(i));
+                json.append(':');
+                writeValue(doc.value(i));
+            }
+            json.append('}');
+        } else if (value instanceof Map) {
+            json.append('{');
+            boolean first = true;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!first) json.append(',');
+                first = false;
+                if (!(entry.getKey() instanceof String)) throw new UnsupportedValueException(entry.getKey());
+                writeString((String) entry.getKey());
+                json.append(':');
+                writeValue(entry.getValue());
+            }
+            json.append('}');
+        } else if (value instanceof List) {
+            writeArray((List) value);
+        } else if (value instanceof Object[]) {
+            writeArray((Object[]) value);
+        } else if (value instanceof OffsetDateTime) {
+            OffsetDateTime dt = (OffsetDateTime) value;
+            writeTime(dt.toEpochSecond(), dt.getNano(), dt.getOffset());
+        } else if (value instanceof ZonedDateTime) {
+            ZonedDateTime dt = (ZonedDateTime) value;
+            writeTime(dt.toEpochSecond(), dt.getNano(), dt.getOffset());
+        } else {
+            throw new UnsupportedValueException(value);
+        }
+    }
+
+    private void writeTime(long epochSecond, int nano, ZoneOffset offset) {
+        json.append("{\"$reql_type$\":\"TIME\",\"epoch_time\":");
+        if (epochSecond < 0 && nano > 0) {
+            json.append('-');
+            epochSecond = -(epochSecond + 1);
+            nano = 1000000000 - nano;
+        }
+        json.append(epochSecond).append('.');
+        for (int div = 100000000; div > 0; div /= 10) {
+            json.append((char) ('0' + nano / div % 10));
+        }
+
+        int offsetSeconds = offset.getTotalSeconds();
+        int offsetMinutes = Math.abs(offsetSeconds) / 60;
+        json.append(",\"timezone\":\"").append(offsetSeconds < 0 ? '-' : '+')
+                .append((char) ('0' + offsetMinutes / 600)).append((char) ('0' + offsetMinutes / 60 % 10))
+                .append(':')
+                .append((char) ('0' + offsetMinutes % 60 / 10)).append((char) ('0' + offsetMinutes % 10))
+                .append("\"}");
+    }
+
+    private void writeString(String str) {
+        json.append('"');
+        for (int i = 0, len = str.length(); i < len; i++) {
+            char ch = str.charAt(i);
+            switch (ch) {
+                case '"':
+                    json.append("\\\"");
+                    break;
+                case '\\':
+                    json.append("\\\\");
+                    break;
+                case '\n':
+                    json.append("\\n");
+                    break;
+                case '\r':
+                    json.append("\\r");
+                    break;
+                case '\t':
+                    json.append("\\t");
+                    break;
+                default:
+                    if (ch < 0x20) {
+                        json.append("\\u00").append(Character.forDigit(ch >> 4, 16)).append(Character.forDigit(ch & 0xF, 16));
+                    } else {
+                        json.append(ch);
+                    }
+            }
+        }
+        json.append('"');
+    }
+}
@@ -0,0 +1,134 @@
+package util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Bounded map which evicts the least recently used entry. Thread-safe.
+ * <p>
+ * Each remove() and clear() advances {@link #invalidations()}, so a value read from elsewhere before an invalidation
+ * is not put back after it by {@link #putIfUnchanged(Object, Object, long)}.
+ * <p>
+ * With admission (TinyLFU) a new key only replaces the eldest entry if it was requested more often recently.
+ * Request frequencies are estimated by a count-min sketch whose counters are halved after each
+ * 10 * maxEntries requests, so keys requested once do not flush frequently used ones.
+ */
+public class LruCache<K, V> {
+    final int maxEntries;
+    final LinkedHashMap<K, V> map;
+    final FrequencySketch sketch;
+    long invalidations;
+
+    public LruCache(int maxEntries, boolean admission) {
+        this.maxEntries = maxEntries;
+        this.map = new LinkedHashMap<>(16, 0.75f, true);
+        this.sketch = admission ? new FrequencySketch(maxEntries) : null;
+    }
+
+    /**
+     * @return value of key or null, also counts a request of key
+     */
+    public synchronized V get(K key) {
+        if (sketch != null) {
+            sketch.increment(key);
+        }
+        return map.get(key);
+    }
+
+    /**
+     * @return false if the key was not admitted
+     */
+    public synchronized boolean put(K key, V value) {
+        if (map.size() < maxEntries || map.containsKey(key)) {
+            map.put(key, value);
+            return true;
+        }
+        Iterator<K> eldest = map.keySet().iterator();
+        if (!eldest.hasNext()) return false;
+        K victim = eldest.next();
+        if (sketch != null && sketch.frequency(key) <= sketch.frequency(victim)) {
+            return false;
+        }
+        eldest.remove();
+        map.put(key, value);
+        return true;
+    }
+
+    /**
+     * put only if nothing was removed or cleared since {@link #invalidations()} returned invalidations
+     *
+     * @return false if the key was invalidated meanwhile or not admitted
+     */
+    public synchronized boolean putIfUnchanged(K key, V value, long invalidations) {
+        return invalidations == this.invalidations && put(key, value);
+    }
+
+    /**
+     * @return count of remove() and clear() calls
+     */
+    public synchronized long invalidations() {
+        return invalidations;
+    }
+
+    public synchronized V remove(K key) {
+        invalidations++;
+        return map.remove(key);
+    }
+
+    public synchronized void clear() {
+        invalidations++;
+        map.clear();
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+    /**
+     * count-min sketch of 4 rows of counters saturating at 15
+     */
+    static class FrequencySketch {
+        static final int DEPTH = 4;
+        static final long[] SEEDS = {0x9E3779B97F4A7C15L, 0xC2B2AE3D27D4EB4FL, 0x165667B19E3779F9L, 0xD6E8FEB86659FD93L};
+
+        final int[][] counters;
+        final int mask;
+        final int sampleSize;
+        int additions;
+
+        FrequencySketch(int maxEntries) {
+            int width = Integer.highestOneBit(Math.max(16, maxEntries) * 4 - 1);
+            counters = new int[DEPTH][width];
+            mask = width - 1;
+            sampleSize = 10 * Math.max(16, maxEntries);
+        }
+
+        int index(Object key, int row) {
+            long hash = (key.hashCode() + SEEDS[row]) * SEEDS[(row + 1) % DEPTH];
+            return (int) (hash ^ (hash >>> 32)) & mask;
+        }
+
+        void increment(Object key) {
+            for (int row = 0; row < DEPTH; row++) {
+                int i = index(key, row);
+                if (counters[row][i] < 15) counters[row][i]++;
+            }
+            if (++additions >= sampleSize) {
+                for (int[] row : counters) {
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] >>>= 1;
+                    }
+                }
+                additions /= 2;
+            }
+        }
+
+        int frequency(Object key) {
+            int min = Integer.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++) {
+                min = Math.min(min, counters[row][index(key, row)]);
+            }
+            return min;
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LruCacheTest {
+
+    @Test
+    public void evict_least_recently_used() {
+        LruCache<String, Integer> cache = new LruCache<>(2, false);
+        cache.put("a", 1);
+        cache.put("b", 2);
+        assertEquals(Integer.valueOf(1), cache.get("a"));
+        cache.put("c", 3);
+
+        assertNull(cache.get("b"));
+        assertEquals(Integer.valueOf(1), cache.get("a"));
+        assertEquals(Integer.valueOf(3), cache.get("c"));
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void admit_only_more_frequent_keys() {
+        LruCache<String, Integer> cache = new LruCache<>(2, true);
+        for (int i = 0; i < 5; i++) {
+            cache.get("a");
+            cache.get("b");
+        }
+        cache.put("a", 1);
+        cache.put("b", 2);
+
+        //requested once, not more than the eldest
+        cache.get("once");
+        assertFalse(cache.put("once", 3));
+        assertEquals(Integer.valueOf(1), cache.get("a"));
+
+        for (int i = 0; i < 10; i++) {
+            cache.get("hot");
+        }
+        assertTrue(cache.put("hot", 4));
+        assertEquals(2, cache.size());
+    }
+}
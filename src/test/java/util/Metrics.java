@@ -0,0 +1,249 @@
+package util;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latency histograms and per-second rows/bytes of named operations, e.g. "bulkInsert users" or "indexWait".
+ * <p>
+ * Latencies are recorded in microseconds into HdrHistogram. Rows and bytes are counted per second since
+ * the metrics were created (or reset), which gives the throughput timeline and its sliding windows.
+ */
+public class Metrics {
+    /**
+     * default metrics of all Database instances of this JVM
+     */
+    public static final Metrics shared = new Metrics();
+
+    public static final int WINDOW_SECONDS = Integer.getInteger("metricsWindowSeconds", 10);
+
+    final Map<String, Timer> timers = new ConcurrentSkipListMap<>();
+    volatile long startNanos = System.nanoTime();
+
+    public static class Timer {
+        public final String name;
+        final Metrics metrics;
+        final Histogram latency = new ConcurrentHistogram(3);
+        final LongAdder rows = new LongAdder();
+        final LongAdder bytes = new LongAdder();
+        final List<long[]> perSecond = new ArrayList<>(); //[rows, bytes, count] of each second
+
+        Timer(Metrics metrics, String name) {
+            this.metrics = metrics;
+            this.name = name;
+        }
+
+        /**
+         * @param startNanos System.nanoTime() when the operation started
+         */
+        public void record(long startNanos, long rowCount, long byteCount) {
+            long endNanos = System.nanoTime();
+            latency.recordValue(Math.max(0, TimeUnit.NANOSECONDS.toMicros(endNanos - startNanos)));
+            rows.add(rowCount);
+            bytes.add(byteCount);
+
+            //0 if reset() moved startNanos past endNanos meanwhile
+            int second = (int) Math.max(0, TimeUnit.NANOSECONDS.toSeconds(endNanos - metrics.startNanos));
+            synchronized (perSecond) {
+                while (perSecond.size() <= second) {
+                    perSecond.add(new long[3]);
+                }
+                long[] slot = perSecond.get(second);
+                slot[0] += rowCount;
+                slot[1] += byteCount;
+                slot[2]++;
+            }
+        }
+
+        public void record(long startNanos) {
+            record(startNanos, 0, 0);
+        }
+
+        public long count() {
+            return latency.getTotalCount();
+        }
+
+        public long totalMillis() {
+            return (long) (latency.getMean() * latency.getTotalCount() / 1000);
+        }
+
+        /**
+         * @return [min, max] rows/sec of full sliding windows of WINDOW_SECONDS, or of the whole run if shorter
+         */
+        public double[] windowRowsPerSec() {
+            synchronized (perSecond) {
+                int seconds = perSecond.size();
+                int window = Math.max(1, Math.min(WINDOW_SECONDS, seconds));
+                double min = Double.MAX_VALUE, max = 0;
+                long sum = 0;
+                for (int i = 0; i < seconds; i++) {
+                    sum += perSecond.get(i)[0];
+                    if (i >= window) sum -= perSecond.get(i - window)[0];
+                    if (i >= window - 1) {
+                        min = Math.min(min, sum / (double) window);
+                        max = Math.max(max, sum / (double) window);
+                    }
+                }
+                return seconds == 0 ? new double[]{0, 0} : new double[]{min, max};
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        JSONObject toJson() {
+            JSONObject json = new JSONObject();
+            json.put("name", name);
+            json.put("count", count());
+            json.put("totalMillis", totalMillis());
+            json.put("rows", rows.sum());
+            json.put("bytes", bytes.sum());
+            JSONObject latencyJson = new JSONObject();
+            latencyJson.put("minMicros", latency.getMinValue());
+            latencyJson.put("p50Micros", latency.getValueAtPercentile(50));
+            latencyJson.put("p90Micros", latency.getValueAtPercentile(90));
+            latencyJson.put("p99Micros", latency.getValueAtPercentile(99));
+            latencyJson.put("p999Micros", latency.getValueAtPercentile(99.9));
+            latencyJson.put("maxMicros", latency.getMaxValue());
+            json.put("latency", latencyJson);
+            double[] window = windowRowsPerSec();
+            json.put("minWindowRowsPerSec", window[0]);
+            json.put("maxWindowRowsPerSec", window[1]);
+            JSONArray timeline = new JSONArray();
+            synchronized (perSecond) {
+                for (long[] slot : perSecond) {
+                    JSONArray item = new JSONArray();
+                    item.add(slot[0]);
+                    item.add(slot[1]);
+                    item.add(slot[2]);
+                    timeline.add(item);
+                }
+            }
+            json.put("perSecond[rows,bytes,count]", timeline);
+            return json;
+        }
+    }
+
+    public Timer timer(String name) {
+        return timers.computeIfAbsent(name, unused -> new Timer(this, name));
+    }
+
+    /**
+     * @return metrics to record into, e.g. by a Database, whose timers are the timers of this metrics named
+     * "{name} {tag}", e.g. "bulkInsert users 4 shards"
+     */
+    public Metrics tagged(String tag) {
+        Metrics parent = this;
+        return new Metrics() {
+            @Override
+            public Timer timer(String name) {
+                return parent.timer(name + " " + tag);
+            }
+        };
+    }
+
+    /**
+     * clear the timers in place, so a timer kept by its user, e.g. by a Scan, still records into these metrics
+     */
+    public void reset() {
+        for (Timer t : timers.values()) {
+            t.latency.reset();
+            t.rows.reset();
+            t.bytes.reset();
+            synchronized (t.perSecond) {
+                t.perSecond.clear();
+            }
+        }
+        startNanos = System.nanoTime();
+    }
+
+    /**
+     * @return timers which recorded since the metrics were created or reset
+     */
+    List<Timer> recorded() {
+        List<Timer> recorded = new ArrayList<>();
+        for (Timer t : timers.values()) {
+            if (t.count() > 0) recorded.add(t);
+        }
+        return recorded;
+    }
+
+    public boolean isEmpty() {
+        return recorded().isEmpty();
+    }
+
+    public void printSummary(Logger logger) {
+        long elapsedSeconds = Math.max(1, TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - startNanos));
+        for (Timer t : recorded()) {
+            Histogram h = t.latency;
+            double[] window = t.windowRowsPerSec();
+            logger.info("{}: {} calls, {} ms, latency us p50={} p90={} p99={} max={}",
+                    t.name, t.count(), t.totalMillis(),
+                    h.getValueAtPercentile(50), h.getValueAtPercentile(90), h.getValueAtPercentile(99), h.getMaxValue());
+            if (t.rows.sum() > 0) {
+                logger.info("{}: {} rows, {} bytes, avg {} rows/s {} bytes/s, {}s window rows/s min={} max={}",
+                        t.name, t.rows.sum(), t.bytes.sum(),
+                        t.rows.sum() / elapsedSeconds, t.bytes.sum() / elapsedSeconds,
+                        WINDOW_SECONDS, (long) window[0], (long) window[1]);
+            }
+        }
+    }
+
+    /**
+     * a latency summary line per operation, followed by one line per operation and second: name,second,count,rows,bytes
+     */
+    public void exportCsv(Path file) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8))) {
+            out.println("name,count,rows,bytes,p50Micros,p90Micros,p99Micros,p999Micros,maxMicros");
+            for (Timer t : recorded()) {
+                Histogram h = t.latency;
+                out.println(String.join(",", csv(t.name), String.valueOf(t.count()), String.valueOf(t.rows.sum()),
+                        String.valueOf(t.bytes.sum()),
+                        String.valueOf(h.getValueAtPercentile(50)), String.valueOf(h.getValueAtPercentile(90)),
+                        String.valueOf(h.getValueAtPercentile(99)), String.valueOf(h.getValueAtPercentile(99.9)),
+                        String.valueOf(h.getMaxValue())));
+            }
+            out.println();
+            out.println("name,second,count,rows,bytes");
+            for (Timer t : recorded()) {
+                synchronized (t.perSecond) {
+                    for (int second = 0; second < t.perSecond.size(); second++) {
+                        long[] slot = t.perSecond.get(second);
+                        out.println(csv(t.name) + "," + second + "," + slot[2] + "," + slot[0] + "," + slot[1]);
+                    }
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public void exportJson(Path file) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        JSONArray json = new JSONArray();
+        for (Timer t : recorded()) {
+            json.add(t.toJson());
+        }
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            json.writeJSONString(out);
+        }
+    }
+
+    static String csv(String value) {
+        return value.contains(",") || value.contains("\"") ? "\"" + value.replace("\"", "\"\"") + "\"" : value;
+    }
+}
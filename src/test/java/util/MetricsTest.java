@@ -0,0 +1,24 @@
+package util;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsTest {
+
+    @Test
+    public void held_timer_records_after_reset() {
+        Metrics metrics = new Metrics();
+        Metrics.Timer timer = metrics.timer("scan t");
+        timer.record(System.nanoTime(), 10, 100);
+        metrics.reset();
+        assertTrue(metrics.isEmpty());
+
+        timer.record(System.nanoTime(), 5, 50);
+        assertFalse(metrics.isEmpty());
+        assertEquals(1, metrics.timer("scan t").count());
+        assertEquals(5, metrics.timer("scan t").rows.sum());
+    }
+}
@@ -0,0 +1,287 @@
+package util;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * Rows of a table as NDJSON, one plain JSON document per line, gzip compressed if the file name ends with ".gz".
+ * <p>
+ * Written by {@link Writer}, read as a RowProvider2 whose rows are {@link JsonBatch.Raw} lines, so
+ * {@link #load(Database, String)} feeds bulkInsert without parsing rows into Maps.
+ * An uncompressed file is memory-mapped and indexed every {@link #INDEX_INTERVAL} lines, so it can be read by parallel
+ * workers and resumed from a checkpoint. A compressed file is streamed and can only be read forward by one worker.
+ */
+public class NdjsonFile implements Database.RowProvider2, AutoCloseable {
+    static final int REGION_BYTES = 1 << 30;
+    static final int INDEX_INTERVAL = 1024;
+
+    public final Path file;
+    public final long lineCount;
+
+    //memory-mapped file: regions of whole lines, and the offset of every INDEX_INTERVAL-th line
+    final FileChannel channel;
+    final long[] regionStarts;
+    final MappedByteBuffer[] regions;
+    final long[] lineOffsets;
+    final ThreadLocal<Cursor> cursors = ThreadLocal.withInitial(Cursor::new);
+
+    //compressed file
+    BufferedReader reader;
+    long nextLine;
+
+    NdjsonFile(Path file) throws IOException {
+        this.file = file;
+        if (isCompressed(file)) {
+            channel = null;
+            regionStarts = null;
+            regions = null;
+            lineOffsets = null;
+            long count = 0;
+            try (BufferedReader counter = newReader(file)) {
+                while (counter.readLine() != null) {
+                    count++;
+                }
+            }
+            lineCount = count;
+            reader = newReader(file);
+            return;
+        }
+
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        long size = channel.size();
+        List<Long> starts = new ArrayList<>();
+        List<MappedByteBuffer> buffers = new ArrayList<>();
+        long[] offsets = new long[16];
+        long count = 0;
+        for (long start = 0; start < size; ) {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(REGION_BYTES, size - start));
+            int limit = buffer.limit();
+            if (start + limit < size) {
+                while (limit > 0 && buffer.get(limit - 1) != '\n') limit--;
+                if (limit == 0) throw new IOException(file + ": line longer than " + REGION_BYTES + " bytes at " + start);
+                buffer.limit(limit);
+            }
+            boolean lineStart = true;
+            for (int i = 0; i < limit; i++) {
+                if (lineStart) {
+                    if (count % INDEX_INTERVAL == 0) {
+                        if (count / INDEX_INTERVAL == offsets.length) offsets = Arrays.copyOf(offsets, offsets.length * 2);
+                        offsets[(int) (count / INDEX_INTERVAL)] = start + i;
+                    }
+                    count++;
+                }
+                lineStart = buffer.get(i) == '\n';
+            }
+            starts.add(start);
+            buffers.add(buffer);
+            start += limit;
+        }
+        lineCount = count;
+        lineOffsets = offsets;
+        regionStarts = starts.stream().mapToLong(Long::longValue).toArray();
+        regions = buffers.toArray(new MappedByteBuffer[0]);
+    }
+
+    public static NdjsonFile open(Path file) {
+        try {
+            return new NdjsonFile(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    static boolean isCompressed(Path file) {
+        return file.getFileName().toString().endsWith(".gz");
+    }
+
+    static BufferedReader newReader(Path file) throws IOException {
+        return new BufferedReader(new InputStreamReader(new GZIPInputStream(Files.newInputStream(file), 1 << 16), UTF_8), 1 << 16);
+    }
+
+    /**
+     * bulkInsert all lines to table, by the workers of db if the file is not compressed
+     *
+     * @return inserted row count
+     */
+    public long load(Database db, String tableName) {
+        if (channel == null && db.workers > 1) {
+            throw new IllegalStateException(file + " is compressed, it can only be loaded by 1 worker");
+        }
+        return db.bulkInsert(tableName, lineCount, this);
+    }
+
+    /**
+     * @return line iLine as raw JSON, or null for an empty line
+     */
+    @Override
+    public Object getDataOfRow(long iRow, long iLine) {
+        try {
+            String line = channel == null ? readLine(iLine) : cursors.get().readLine(iLine);
+            return line.isEmpty() ? null : new JsonBatch.Raw(line);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private synchronized String readLine(long iLine) throws IOException {
+        if (iLine < nextLine) {
+            throw new IllegalStateException(file + " is compressed, line " + iLine + " can not be read after line " + nextLine);
+        }
+        String line;
+        do {
+            line = reader.readLine();
+            if (line == null) throw new IOException(file + ": line " + nextLine + " of " + lineCount + " not found");
+        } while (nextLine++ < iLine);
+        return line;
+    }
+
+    /**
+     * read position of a thread in the memory-mapped file
+     */
+    class Cursor {
+        long line = -1;
+        int region;
+        ByteBuffer buffer;
+        byte[] bytes = new byte[1024];
+
+        String readLine(long iLine) {
+            if (iLine != line) {
+                seek(iLine);
+            }
+            int start = buffer.position();
+            int end = start;
+            while (end < buffer.limit() && buffer.get(end) != '\n') end++;
+            int length = end > start && buffer.get(end - 1) == '\r' ? end - start - 1 : end - start;
+            if (bytes.length < length) {
+                bytes = new byte[Math.max(length, bytes.length * 2)];
+            }
+            buffer.get(bytes, 0, length);
+            buffer.position(Math.min(end + 1, buffer.limit()));
+            line++;
+            if (!buffer.hasRemaining() && region + 1 < regions.length) {
+                buffer = regions[++region].duplicate();
+            }
+            return new String(bytes, 0, length, UTF_8);
+        }
+
+        private void seek(long iLine) {
+            if (iLine < 0 || iLine >= lineCount) {
+                throw new IndexOutOfBoundsException(file + ": line " + iLine + " of " + lineCount);
+            }
+            long offset = lineOffsets[(int) (iLine / INDEX_INTERVAL)];
+            int i = Arrays.binarySearch(regionStarts, offset);
+            region = i >= 0 ? i : -i - 2;
+            buffer = regions[region].duplicate();
+            buffer.position((int) (offset - regionStarts[region]));
+            line = iLine - iLine % INDEX_INTERVAL;
+            while (line < iLine) {
+                while (buffer.get() != '\n') ;
+                line++;
+                if (!buffer.hasRemaining() && region + 1 < regions.length) {
+                    buffer = regions[++region].duplicate();
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (channel != null) {
+                channel.close();
+            }
+            if (reader != null) {
+                reader.close();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * write rows of callingCountOfRowProvider calls to file, like bulkInsert does to a table
+     *
+     * @return written row count
+     */
+    public static long export(Path file, long callingCountOfRowProvider, Database.RowProvider2 rowProvider) {
+        try (Writer writer = new Writer(file)) {
+            long iRow = 0;
+            for (long i = 0; i < callingCountOfRowProvider; i++) {
+                Object row = rowProvider.getDataOfRow(iRow, i);
+                if (row == null) continue;
+                if (row.equals(false)) break;
+                for (Object r : row instanceof List ? (List<?>) row
+                        : Arrays.asList(row instanceof Object[] ? (Object[]) row : new Object[]{row})) {
+                    writer.write(r);
+                    iRow++;
+                }
+            }
+            return writer.rowCount();
+        }
+    }
+
+    /**
+     * writes rows as lines of NDJSON. Not thread-safe
+     */
+    public static class Writer implements AutoCloseable {
+        public final Path file;
+        final java.io.Writer out;
+        final JsonBatch json = new JsonBatch();
+        long rowCount;
+
+        public Writer(Path file) {
+            this.file = file;
+            try {
+                if (file.getParent() != null) {
+                    Files.createDirectories(file.getParent());
+                }
+                out = new BufferedWriter(new OutputStreamWriter(isCompressed(file)
+                        ? new GZIPOutputStream(Files.newOutputStream(file), 1 << 16)
+                        : Files.newOutputStream(file), UTF_8), 1 << 16);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        public void write(Object row) {
+            json.encodePlain(row);
+            try {
+                json.writeTo(out);
+                out.write('\n');
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            rowCount++;
+        }
+
+        public long rowCount() {
+            return rowCount;
+        }
+
+        @Override
+        public void close() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
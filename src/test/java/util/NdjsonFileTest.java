@@ -0,0 +1,82 @@
+package util;
+
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import util.DataGenerator.Table;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class NdjsonFileTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    final DataGenerator data = DataGeneratorTest.newGenerator(100, 50, 3000, 3);
+
+    Path export(String name) {
+        Path file = folder.getRoot().toPath().resolve(name);
+        assertEquals(data.bookingCount, NdjsonFile.export(file, data.indexCount(Table.bookings),
+                (iRow, iBooking) -> data.booking(iBooking)));
+        return file;
+    }
+
+    @Test
+    public void read_lines_in_any_order() throws ParseException {
+        try (NdjsonFile file = NdjsonFile.open(export("bookings.ndjson"))) {
+            assertEquals(data.bookingCount, file.lineCount);
+            for (long i : new long[]{0, 1, 2, 1500, 1501, 1024, 1023, 2999, 7}) {
+                Map<?, ?> row = (Map<?, ?>) new JSONParser().parse(file.getDataOfRow(i, i).toString());
+                assertEquals(data.bookingId(i), row.get("bookingId"));
+                assertEquals(data.booking(i).get("tourId"), row.get("tourId"));
+            }
+        }
+    }
+
+    @Test
+    public void raw_rows_as_make_array() {
+        JsonBatch batch = new JsonBatch();
+        batch.encode(java.util.Arrays.asList(new JsonBatch.Raw("{\"a\":[1,[\"[x]\\\"]\"]],\"b\":\"]\"}")));
+        assertEquals("[2,[{\"a\":[2,[1,[2,[\"[x]\\\"]\"]]]],\"b\":\"]\"}]]", batch.toJSONString());
+    }
+
+    void load(String name, int workers) {
+        try (StubServer server = StubServer.start(0);
+             NdjsonFile file = NdjsonFile.open(export(name))) {
+            Database db = new Database("test", "localhost", server.port());
+            try {
+                db.metrics = new Metrics();
+                db.workers = workers;
+                db.batchRows = 100;
+                db.recreateTable("bookings", "bookingId");
+
+                assertEquals(data.bookingCount, file.load(db, "bookings"));
+                assertEquals(data.bookingCount, db.getTableRowCount("bookings"));
+                Map<String, Object> booking = db.get("bookings", data.bookingId(2000));
+                assertEquals(data.booking(2000).get("tourId"), booking.get("tourId"));
+                assertEquals(data.booking(2000).get("createdAt"), booking.get("createdAt"));
+                assertNull(db.get("bookings", data.bookingId(data.bookingCount)));
+            } finally {
+                db.pool.close();
+                db.c.close();
+            }
+        }
+    }
+
+    @Test
+    public void load_mapped_by_workers() {
+        load("bookings.ndjson", 3);
+    }
+
+    @Test
+    public void load_compressed() {
+        load("bookings.ndjson.gz", 1);
+    }
+}
@@ -0,0 +1,44 @@
+package util;
+
+import com.rethinkdb.net.Connection;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Database without server, for tests and benchmarks of the client alone. Inserted batches are counted and
+ * dropped, the insert of batch number failAtBatch throws
+ */
+public class OfflineDatabase extends Database {
+    public final int failAtBatch;
+    public final AtomicInteger batchCount = new AtomicInteger();
+
+    public OfflineDatabase(String dbName) {
+        this(dbName, -1);
+    }
+
+    public OfflineDatabase(String dbName, int failAtBatch) {
+        super(dbName, null);
+        this.failAtBatch = failAtBatch;
+    }
+
+    @Override
+    public Connection newConnection() {
+        return null;
+    }
+
+    @Override
+    protected int bulkInsert(Connection c, String tableName, List rowAry, long estimatedBytes) {
+        if (batchCount.incrementAndGet() == failAtBatch) {
+            throw new RuntimeException("insert failed");
+        }
+        inserted(tableName, rowAry);
+        return rowAry.size();
+    }
+
+    /**
+     * called with the rows of each inserted batch, e.g. to keep them
+     */
+    protected void inserted(String tableName, List<?> rows) {
+    }
+}
@@ -0,0 +1,212 @@
+package util;
+
+import com.rethinkdb.net.Cursor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.rethinkdb.RethinkDB.r;
+
+/**
+ * Read-through cache of documents of a table by primary key, created by Database.cache().
+ * <p>
+ * The cache subscribes to the changefeed of the table and removes each changed key. A document read
+ * while any change was notified is not cached: the check and the put are atomic with the removal
+ * ({@link LruCache#putIfUnchanged(Object, Object, long)}), so a notification can not be overtaken by the value it invalidates.
+ * If the feed fails, the cache is cleared and reads go to the server.
+ * <p>
+ * Hits and misses are recorded as "cache hit {table}" and "cache miss {table}" in the Database metrics.
+ * A verifyRate fraction of hits is compared with the server, a different document counts as a stale hit.
+ */
+public class ReadCache implements AutoCloseable {
+    static final Logger logger = LoggerFactory.getLogger(ReadCache.class);
+    static final Object NULL = new Object();
+    static final int FEED_READ_AHEAD = 100;
+
+    final Database db;
+    public final String tableName;
+    final String primaryKey;
+    final LruCache<Object, Object> entries;
+    final double verifyRate;
+    final Scan<Map<String, Object>> feed;
+    final Thread thread;
+    volatile boolean coherent = true;
+
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder verifiedHits = new LongAdder();
+    final LongAdder staleHits = new LongAdder();
+    final LongAdder invalidations = new LongAdder();
+
+    /**
+     * the changes are read by the background reader of the scan, so close() joins it before its connection
+     * is returned to the pool, while the invalidation thread only takes them from the read-ahead queue
+     */
+    ReadCache(Database db, String tableName, int maxEntries, boolean admission, double verifyRate) {
+        this(db, tableName, db.run(r.table(tableName).info().g("primary_key")), maxEntries, admission, verifyRate,
+                db.<Map<String, Object>>scan(r.table(tableName).changes(), "cache-" + tableName).readAhead(FEED_READ_AHEAD).open());
+    }
+
+    /**
+     * @param feed changes of the table, or null if they are passed to {@link #onChange(Map)} by the caller
+     */
+    ReadCache(Database db, String tableName, String primaryKey, int maxEntries, boolean admission, double verifyRate,
+              Scan<Map<String, Object>> feed) {
+        this.db = db;
+        this.tableName = tableName;
+        this.primaryKey = primaryKey;
+        this.entries = new LruCache<>(maxEntries, admission);
+        this.verifyRate = verifyRate;
+        this.feed = feed;
+        this.thread = feed == null ? null : new Thread(this::invalidate, "cache-" + tableName);
+        if (thread != null) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * remove the keys of the old and new document of a change
+     */
+    @SuppressWarnings("unchecked")
+    void onChange(Map<String, Object> change) {
+        for (String field : new String[]{"old_val", "new_val"}) {
+            Map<String, Object> doc = (Map<String, Object>) change.get(field);
+            if (doc != null) {
+                entries.remove(doc.get(primaryKey));
+            }
+        }
+        invalidations.increment();
+    }
+
+    private void invalidate() {
+        try {
+            for (Map<String, Object> change : feed) {
+                onChange(change);
+            }
+        } catch (RuntimeException e) {
+            if (coherent) {
+                logger.error("changefeed of {} failed, cache disabled", tableName, e);
+            }
+        } finally {
+            coherent = false;
+            entries.clear();
+        }
+    }
+
+    /**
+     * @return document of key or null
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> get(Object key) {
+        long startTime = System.nanoTime();
+        Object value = coherent ? entries.get(key) : null;
+        if (value != null) {
+            hits.increment();
+            if (verifyRate > 0 && ThreadLocalRandom.current().nextDouble() < verifyRate) {
+                verify(key, value);
+            }
+            db.metrics.timer("cache hit " + tableName).record(startTime);
+            return value == NULL ? null : (Map<String, Object>) value;
+        }
+
+        misses.increment();
+        long seq = entries.invalidations();
+        Map<String, Object> doc = db.run(r.table(tableName).get(key));
+        if (coherent) {
+            entries.putIfUnchanged(key, doc == null ? NULL : doc, seq);
+        }
+        db.metrics.timer("cache miss " + tableName).record(startTime);
+        return doc;
+    }
+
+    /**
+     * @return documents of keys in the order of keys, missing keys are skipped
+     */
+    @SuppressWarnings("unchecked")
+    public List<Map<String, Object>> getAll(Object... keys) {
+        long startTime = System.nanoTime();
+        Object[] values = new Object[keys.length];
+        List<Object> missKeys = new ArrayList<>();
+        for (int i = 0; i < keys.length; i++) {
+            values[i] = coherent ? entries.get(keys[i]) : null;
+            if (values[i] == null) {
+                missKeys.add(keys[i]);
+            }
+        }
+        hits.add(keys.length - missKeys.size());
+        misses.add(missKeys.size());
+
+        if (!missKeys.isEmpty()) {
+            long seq = entries.invalidations();
+            Map<Object, Object> fetched = new HashMap<>();
+            Object res = db.run(r.table(tableName).getAll(missKeys.toArray()));
+            for (Object doc : res instanceof Cursor ? (Cursor<?>) res : (List<?>) res) {
+                fetched.put(((Map<String, Object>) doc).get(primaryKey), doc);
+            }
+            for (int i = 0; i < keys.length; i++) {
+                if (values[i] != null) continue;
+                Object doc = fetched.get(keys[i]);
+                values[i] = doc == null ? NULL : doc;
+                if (coherent) {
+                    entries.putIfUnchanged(keys[i], values[i], seq);
+                }
+            }
+        }
+
+        List<Map<String, Object>> docs = new ArrayList<>(keys.length);
+        for (Object value : values) {
+            if (value != NULL) {
+                docs.add((Map<String, Object>) value);
+            }
+        }
+        db.metrics.timer((missKeys.isEmpty() ? "cache hit " : "cache miss ") + tableName).record(startTime, keys.length, 0);
+        return docs;
+    }
+
+    private void verify(Object key, Object value) {
+        long seq = entries.invalidations();
+        Object doc = db.run(r.table(tableName).get(key));
+        verifiedHits.increment();
+        if (!Objects.equals(doc == null ? NULL : doc, value) && seq == entries.invalidations()) {
+            staleHits.increment();
+        }
+    }
+
+    public long hitCount() {
+        return hits.sum();
+    }
+
+    public long missCount() {
+        return misses.sum();
+    }
+
+    public void logSummary() {
+        long requests = Math.max(1, hits.sum() + misses.sum());
+        logger.info("cache {}: {} entries, {} hits ({}%), {} misses, {} invalidations, {} stale of {} verified hits",
+                tableName, entries.size(), hits.sum(), hits.sum() * 100 / requests, misses.sum(),
+                invalidations.sum(), staleHits.sum(), verifiedHits.sum());
+    }
+
+    @Override
+    public void close() {
+        coherent = false;
+        if (feed != null) {
+            feed.close();
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        entries.clear();
+    }
+}
@@ -0,0 +1,81 @@
+package util;
+
+import com.rethinkdb.ast.ReqlAst;
+import com.rethinkdb.gen.ast.GetAll;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+public class ReadCacheTest {
+
+    /**
+     * table of one document {id: "k", v: version}, each read returns the current version and then
+     * lets onRead change the document, as if the change was notified before the reader puts its result
+     */
+    static class OneDocDatabase extends OfflineDatabase {
+        final AtomicInteger version = new AtomicInteger(1);
+        Runnable onRead = () -> {
+        };
+
+        OneDocDatabase() {
+            super("test");
+            metrics = new Metrics();
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        <T> T run(ReqlAst query) {
+            Map<String, Object> doc = new HashMap<>();
+            doc.put("id", "k");
+            doc.put("v", version.get());
+            onRead.run();
+            return (T) (query instanceof GetAll ? Collections.singletonList(doc) : doc);
+        }
+    }
+
+    static Map<String, Object> change(OneDocDatabase db) {
+        Map<String, Object> doc = new HashMap<>();
+        doc.put("id", "k");
+        doc.put("v", db.version.incrementAndGet());
+        return Collections.singletonMap("new_val", doc);
+    }
+
+    @Test
+    public void change_during_read_is_not_overtaken() {
+        OneDocDatabase db = new OneDocDatabase();
+        ReadCache cache = new ReadCache(db, "t", "id", 10, false, 0, null);
+        db.onRead = () -> cache.onChange(change(db));
+
+        assertEquals(1, cache.get("k").get("v"));
+        db.onRead = () -> {
+        };
+        assertEquals("the read before the change was not cached", 2, cache.get("k").get("v"));
+        assertEquals(2, cache.get("k").get("v"));
+        assertEquals(1, cache.hitCount());
+
+        cache.onChange(change(db));
+        assertEquals(3, cache.get("k").get("v"));
+        cache.close();
+    }
+
+    @Test
+    public void change_during_get_all_is_not_overtaken() {
+        OneDocDatabase db = new OneDocDatabase();
+        ReadCache cache = new ReadCache(db, "t", "id", 10, false, 0, null);
+        db.onRead = () -> cache.onChange(change(db));
+
+        assertEquals(1, cache.getAll("k").get(0).get("v"));
+        db.onRead = () -> {
+        };
+        assertEquals(2, cache.getAll("k").get(0).get("v"));
+        assertEquals(0, cache.hitCount());
+        assertEquals(2, cache.getAll("k").get(0).get("v"));
+        assertEquals(1, cache.hitCount());
+        cache.close();
+    }
+}
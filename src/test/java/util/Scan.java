@@ -0,0 +1,280 @@
+package util;
+
+import com.rethinkdb.ast.ReqlAst;
+import com.rethinkdb.model.OptArgs;
+import com.rethinkdb.net.Connection;
+import com.rethinkdb.net.Cursor;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lazily consumed result of a stream query, e.g. a table or an index range, created by Database.scan().
+ * <p>
+ * The query is started by the first hasNext(). With readAhead > 0 a background thread reads the driver
+ * cursor into a queue of readAhead rows and blocks when the queue is full, so the driver does not request
+ * more batches than the consumer can take (backpressure). The heap used by a scan is bounded by the
+ * queue plus the driver batches, whatever the size of the table.
+ * <p>
+ * The connection is borrowed from the pool of the Database until the scan is exhausted or closed.
+ * With a background reader, only the reader returns it, after its last read of the cursor,
+ * so the connection is never borrowed by others while it may still be read.
+ */
+public class Scan<T> implements Iterator<T>, Iterable<T>, AutoCloseable {
+    private static final Object END = new Object();
+    private static final Object NULL = new Object();
+
+    final Database db;
+    final ReqlAst query;
+    final String name;
+
+    Integer maxBatchRows;
+    Integer maxBatchBytes;
+    Double firstBatchScaleupFactor;
+    int readAhead = 1000;
+
+    private boolean started;
+    private boolean done;
+    private volatile boolean closed;
+    private Connection conn;
+    private Iterator<?> source;
+    private ArrayBlockingQueue<Object> queue;
+    Thread reader;
+    private volatile RuntimeException error;
+    private Object next;
+    private volatile long rowCount; //rows taken by the consumer
+    private long startNanos;
+    private boolean recorded;
+    private boolean cursorClosed;
+
+    Scan(Database db, ReqlAst query, String name) {
+        this.db = db;
+        this.query = query;
+        this.name = name;
+    }
+
+    /**
+     * max rows of each batch the server sends (max_batch_rows)
+     */
+    public Scan<T> maxBatchRows(int maxBatchRows) {
+        this.maxBatchRows = maxBatchRows;
+        return this;
+    }
+
+    /**
+     * max bytes of each batch the server sends (max_batch_bytes)
+     */
+    public Scan<T> maxBatchBytes(int maxBatchBytes) {
+        this.maxBatchBytes = maxBatchBytes;
+        return this;
+    }
+
+    /**
+     * how much larger the first batch is than later batches (first_batch_scaleup_factor)
+     */
+    public Scan<T> firstBatchScaleupFactor(double firstBatchScaleupFactor) {
+        this.firstBatchScaleupFactor = firstBatchScaleupFactor;
+        return this;
+    }
+
+    /**
+     * @param readAhead rows buffered by the background reader, 0 means read the cursor in the consuming thread
+     */
+    public Scan<T> readAhead(int readAhead) {
+        this.readAhead = readAhead;
+        return this;
+    }
+
+    /**
+     * start the query now instead of on the first hasNext(), e.g. to subscribe a changefeed before writing
+     */
+    public Scan<T> open() {
+        if (!started) start();
+        return this;
+    }
+
+    OptArgs runOptArgs() {
+        OptArgs optArgs = new OptArgs();
+        if (maxBatchRows != null) optArgs.with("max_batch_rows", maxBatchRows);
+        if (maxBatchBytes != null) optArgs.with("max_batch_bytes", maxBatchBytes);
+        if (firstBatchScaleupFactor != null) optArgs.with("first_batch_scaleup_factor", firstBatchScaleupFactor);
+        return optArgs;
+    }
+
+    private void start() {
+        started = true;
+        startNanos = System.nanoTime();
+        conn = db.pool.borrow();
+        try {
+            Object res = query.run(conn, runOptArgs());
+            source = res instanceof Cursor ? (Cursor<?>) res
+                    : res instanceof List ? ((List<?>) res).iterator()
+                    : Collections.singletonList(res).iterator();
+        } catch (RuntimeException e) {
+            release();
+            record();
+            throw e;
+        }
+
+        if (readAhead > 0 && source instanceof Cursor) {
+            queue = new ArrayBlockingQueue<>(readAhead);
+            reader = new Thread(this::read, "scan-" + name);
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    private void read() {
+        try {
+            while (!closed && source.hasNext()) {
+                Object item = source.next();
+                queue.put(item == null ? NULL : item);
+            }
+        } catch (InterruptedException e) {
+            //closed by consumer
+        } catch (RuntimeException e) {
+            if (!closed) error = e;
+        } finally {
+            release();
+            if (closed) {
+                //wake up a consumer blocked in hasNext() of another thread
+                queue.clear();
+                queue.offer(END);
+            } else {
+                try {
+                    queue.put(END);
+                } catch (InterruptedException e) {
+                    queue.clear();
+                    queue.offer(END);
+                }
+            }
+        }
+    }
+
+    /**
+     * close the cursor and return the connection, only the first call has effect
+     */
+    private synchronized void release() {
+        if (conn == null) return;
+        try {
+            closeCursor();
+        } finally {
+            db.pool.release(conn);
+            conn = null;
+        }
+    }
+
+    /**
+     * stop the query on the server, which also wakes up a reader waiting for the next batch, e.g. of a changefeed
+     */
+    private synchronized void closeCursor() {
+        if (cursorClosed || !(source instanceof Cursor)) return;
+        cursorClosed = true;
+        ((Cursor<?>) source).close();
+    }
+
+    /**
+     * record the rows taken by the consumer and the time since start, once: when the consumer reached the end
+     * or closed the scan, not when the reader thread reached the end of the cursor
+     */
+    private synchronized void record() {
+        if (recorded) return;
+        recorded = true;
+        db.metrics.timer("scan " + name).record(startNanos, rowCount, 0);
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (!started) start();
+        if (next != null) return true;
+        if (done) return false;
+
+        if (queue == null) {
+            if (!closed && source.hasNext()) {
+                Object item = source.next();
+                next = item == null ? NULL : item;
+                return true;
+            }
+            done = true;
+            release();
+            record();
+            return false;
+        }
+
+        Object item;
+        try {
+            item = queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        }
+        if (item == END) {
+            done = true;
+            record();
+            if (error != null) throw error;
+            return false;
+        }
+        next = item;
+        return true;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public T next() {
+        if (!hasNext()) throw new NoSuchElementException();
+        Object item = next;
+        next = null;
+        rowCount++;
+        return item == NULL ? null : (T) item;
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return this;
+    }
+
+    /**
+     * stop the scan, may be called from another thread than the consumer, e.g. to stop an endless changefeed.
+     * A background reader is waited for, it returns the connection when its last read is done
+     */
+    @Override
+    public void close() {
+        closed = true;
+        if (reader == null) {
+            done = true;
+            if (started) {
+                release();
+                record();
+            }
+            return;
+        }
+        reader.interrupt();
+        try {
+            closeCursor();
+        } finally {
+            try {
+                reader.join(TimeUnit.SECONDS.toMillis(10));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (reader.isAlive()) {
+                abandon();
+            }
+            record();
+        }
+    }
+
+    /**
+     * close the connection of a reader which did not stop, so it can not be reused while the reader reads it.
+     * The reader fails and drops the closed connection
+     */
+    private synchronized void abandon() {
+        if (conn != null) {
+            conn.close();
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Buffered writer of a secondary table which is filled while another table is being loaded,
+ * e.g. rows collected from inside a RowProvider.
+ * <p>
+ * Rows are inserted in batches of batchRows. In async mode a full batch is inserted by a background
+ * thread, so add() never waits for a round trip. Errors of background inserts are thrown by the next add() or flush().
+ * Safe to be called from multiple threads.
+ */
+public class SideTableWriter {
+    final Database db;
+    public final String tableName;
+    /**
+     * table whose load fills this table, or null
+     */
+    public final String sourceTableName;
+    final int batchRows;
+    final ExecutorService executor;
+
+    private ArrayList<Object> rowAry;
+    private final List<Future<Integer>> pending = new ArrayList<>();
+    private long insertedCount;
+
+    SideTableWriter(Database db, String tableName, String sourceTableName, int batchRows, boolean async) {
+        this.db = db;
+        this.tableName = tableName;
+        this.sourceTableName = sourceTableName;
+        this.batchRows = batchRows;
+        this.rowAry = new ArrayList<>(batchRows);
+        this.executor = async ? Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "sideTable-" + tableName);
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+
+    public synchronized void add(Object row) {
+        rowAry.add(row);
+        if (rowAry.size() >= batchRows) {
+            send();
+        }
+    }
+
+    /**
+     * insert buffered rows and wait for all background inserts
+     *
+     * @return total inserted row count of this writer
+     */
+    public synchronized long flush() {
+        try {
+            if (rowAry.size() > 0) {
+                send();
+            }
+        } finally {
+            //a failed insert is thrown once, the inserts after it are still waited for by the next flush
+            for (Iterator<Future<Integer>> it = pending.iterator(); it.hasNext(); ) {
+                Future<Integer> future = it.next();
+                it.remove();
+                insertedCount += get(future);
+            }
+        }
+        return insertedCount;
+    }
+
+    /**
+     * flush and stop the background thread, called by Database when the table is dropped or truncated
+     */
+    public synchronized long close() {
+        try {
+            return flush();
+        } finally {
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+    }
+
+    private void send() {
+        List<Object> batch = rowAry;
+        rowAry = new ArrayList<>(batchRows);
+
+        if (executor == null) {
+            insertedCount += db.bulkInsert(tableName, batch);
+            return;
+        }
+
+        //submitted before an error of a previous batch is thrown, so the batch is not lost
+        pending.add(executor.submit(() -> db.bulkInsert(tableName, batch)));
+        for (Iterator<Future<Integer>> it = pending.iterator(); it.hasNext(); ) {
+            Future<Integer> future = it.next();
+            if (future.isDone()) {
+                it.remove();
+                insertedCount += get(future);
+            }
+        }
+    }
+
+    private static int get(Future<Integer> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw (e.getCause() instanceof RuntimeException) ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+        }
+    }
+}
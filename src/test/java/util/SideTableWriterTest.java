@@ -0,0 +1,55 @@
+package util;
+
+import com.rethinkdb.ast.ReqlAst;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SideTableWriterTest {
+
+    @Test
+    public void failed_insert_is_thrown_once() {
+        OfflineDatabase db = new OfflineDatabase("test", 2);
+        db.batchRows = 10;
+        db.asyncSideTables = true;
+        SideTableWriter writer = db.sideTable("side");
+        int errorCount = 0;
+        for (int i = 0; i < 35; i++) {
+            try {
+                writer.add(i);
+            } catch (RuntimeException e) {
+                //thrown by the add after the failed insert finished, or else by flush
+                assertEquals("insert failed", e.getMessage());
+                errorCount++;
+            }
+        }
+        try {
+            writer.flush();
+        } catch (RuntimeException e) {
+            assertEquals("insert failed", e.getMessage());
+            errorCount++;
+        }
+        assertEquals(1, errorCount);
+        assertEquals(25, writer.flush());
+        assertEquals(25, writer.close());
+    }
+
+    @Test
+    public void dropped_table_closes_writer() {
+        OfflineDatabase db = new OfflineDatabase("test") {
+            @Override
+            <T> T run(ReqlAst query) {
+                return null;
+            }
+        };
+        db.asyncSideTables = true;
+        SideTableWriter writer = db.sideTable("side");
+        writer.add(1);
+        db.dropTable("side");
+
+        assertTrue(writer.executor.isShutdown());
+        assertEquals(1, db.batchCount.get());
+        assertTrue(db.sideTable("side") != writer);
+    }
+}
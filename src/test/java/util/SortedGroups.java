@@ -0,0 +1,55 @@
+package util;
+
+import java.util.Iterator;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.stream.Collector;
+
+/**
+ * Group aggregation of rows sorted by group key, e.g. a cursor of orderBy(index).
+ * Only the accumulator of the current group is held, so memory does not grow with the count of groups.
+ */
+public final class SortedGroups {
+
+    private SortedGroups() {
+    }
+
+    /**
+     * reduce each run of rows with the same key by collector
+     *
+     * @param onGroup called with the key and the result of each group, in key order
+     * @return count of groups
+     */
+    @SuppressWarnings("unchecked")
+    public static <T, K, A, R> long forEach(Iterator<? extends T> rows, Function<? super T, ? extends K> keyOf,
+                                            Collector<? super T, A, R> collector, BiConsumer<? super K, ? super R> onGroup) {
+        BiConsumer<A, ? super T> accumulator = collector.accumulator();
+        Function<A, R> finisher = collector.finisher();
+
+        long groupCount = 0;
+        K key = null;
+        A container = null;
+        while (rows.hasNext()) {
+            T row = rows.next();
+            K rowKey = keyOf.apply(row);
+            int order = container == null ? 1 : ((Comparable<Object>) rowKey).compareTo(key);
+            if (order < 0) {
+                throw new IllegalStateException("keys are not sorted: " + key + " > " + rowKey);
+            }
+            if (order > 0) {
+                if (container != null) {
+                    onGroup.accept(key, finisher.apply(container));
+                    groupCount++;
+                }
+                key = rowKey;
+                container = collector.supplier().get();
+            }
+            accumulator.accept(container, row);
+        }
+        if (container != null) {
+            onGroup.accept(key, finisher.apply(container));
+            groupCount++;
+        }
+        return groupCount;
+    }
+}
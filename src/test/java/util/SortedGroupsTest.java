@@ -0,0 +1,34 @@
+package util;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+
+public class SortedGroupsTest {
+
+    @Test
+    public void reduce_each_group() {
+        Map<Character, String> groups = new LinkedHashMap<>();
+        long count = SortedGroups.forEach(Arrays.asList("a1", "a2", "b1", "c1", "c2", "c3").iterator(),
+                row -> row.charAt(0), Collectors.joining(","), groups::put);
+
+        assertEquals(3, count);
+        assertEquals("{a=a1,a2, b=b1, c=c1,c2,c3}", groups.toString());
+        assertEquals(0, SortedGroups.forEach(Collections.<String>emptyIterator(), row -> row,
+                Collectors.counting(), (key, n) -> {
+                    throw new AssertionError();
+                }));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void unsorted_keys_fail() {
+        SortedGroups.forEach(Arrays.asList("b", "a").iterator(), row -> row, Collectors.counting(), (key, n) -> {
+        });
+    }
+}
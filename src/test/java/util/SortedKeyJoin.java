@@ -0,0 +1,60 @@
+package util;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Merge join of key streams sorted in ascending order, e.g. cursors of orderBy(index).
+ * Only the current key of each stream is held, so memory does not grow with the table size.
+ */
+public final class SortedKeyJoin {
+
+    private SortedKeyJoin() {
+    }
+
+    /**
+     * find distinct keys of child which exist in none of parents. Duplicated keys are allowed in all streams
+     *
+     * @param onMissing called with each missing key
+     * @return count of missing keys
+     */
+    @SuppressWarnings("unchecked")
+    public static long countMissing(Iterator<?> child, List<? extends Iterator<?>> parents, Consumer<Object> onMissing) {
+        int parentCount = parents.size();
+        Comparable[] heads = new Comparable[parentCount];
+        for (int i = 0; i < parentCount; i++) {
+            heads[i] = next(parents.get(i));
+        }
+
+        long missingCount = 0;
+        Comparable last = null;
+        while (child.hasNext()) {
+            Comparable key = (Comparable) child.next();
+            if (last != null && last.compareTo(key) == 0) continue;
+            if (last != null && last.compareTo(key) > 0) {
+                throw new IllegalStateException("child keys are not sorted: " + last + " > " + key);
+            }
+            last = key;
+
+            boolean found = false;
+            for (int i = 0; i < parentCount; i++) {
+                while (heads[i] != null && heads[i].compareTo(key) < 0) {
+                    heads[i] = next(parents.get(i));
+                }
+                if (heads[i] != null && heads[i].compareTo(key) == 0) {
+                    found = true;
+                }
+            }
+            if (!found) {
+                missingCount++;
+                onMissing.accept(key);
+            }
+        }
+        return missingCount;
+    }
+
+    private static Comparable next(Iterator<?> it) {
+        return it.hasNext() ? (Comparable) it.next() : null;
+    }
+}
@@ -0,0 +1,46 @@
+package util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class SortedKeyJoinTest {
+
+    static List<Object> missing(List<String> child, List<List<String>> parents) {
+        List<Object> missing = new ArrayList<>();
+        List<Iterator<String>> parentIterators = new ArrayList<>();
+        for (List<String> parent : parents) {
+            parentIterators.add(parent.iterator());
+        }
+        long count = SortedKeyJoin.countMissing(child.iterator(), parentIterators, missing::add);
+        assertEquals(missing.size(), count);
+        return missing;
+    }
+
+    @Test
+    public void find_missing_keys() {
+        assertEquals(Arrays.asList("a", "d", "f"), missing(
+                Arrays.asList("a", "a", "b", "c", "c", "d", "e", "f"),
+                Collections.singletonList(Arrays.asList("b", "b", "c", "e", "e"))));
+    }
+
+    @Test
+    public void key_exists_in_any_parent() {
+        assertEquals(Collections.singletonList("d"), missing(
+                Arrays.asList("a", "b", "c", "d", "e"),
+                Arrays.asList(Arrays.asList("a", "c"), Arrays.asList("b", "b", "e", "z"))));
+    }
+
+    @Test
+    public void empty_parent() {
+        assertEquals(Arrays.asList("a", "b"), missing(
+                Arrays.asList("a", "b", "b"),
+                Collections.singletonList(Collections.emptyList())));
+    }
+}
@@ -0,0 +1,1223 @@
+package util;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.GeneralSecurityException;
+import java.time.OffsetDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * In-process server speaking the V1_0 wire protocol of RethinkDB, so Database can be run and benchmarked
+ * without a RethinkDB server, and client cost can be measured apart from server cost.
+ * <p>
+ * Tables are kept in memory. Only the terms used by Database, the load paths and the benchmarks are implemented:
+ * databases, tables, indexes, config/reconfigure/wait, insert/update/replace/delete, count, get, getAll, between,
+ * orderBy, filter, limit and the expressions in between. Other terms, e.g. changes, fail with a runtime error.
+ * Sequences are returned in batches of max_batch_rows rows with continue/stop.
+ * <p>
+ * Every response is delayed by {@link #latencyMicros} plus {@link #rowNanos} per row read or written, without
+ * blocking the following queries of the connection. Responses of a connection are sent in the order of its
+ * queries. The SCRAM handshake accepts the admin user without password.
+ */
+public class StubServer implements AutoCloseable {
+    static final Logger logger = LoggerFactory.getLogger(StubServer.class);
+
+    static final int V1_0 = 0x34c2bdc3;
+    static final int ITERATIONS = 4096;
+
+    //query types
+    static final int START = 1, CONTINUE = 2, STOP = 3, NOREPLY_WAIT = 4, SERVER_INFO = 5;
+    //response types
+    static final int SUCCESS_ATOM = 1, SUCCESS_SEQUENCE = 2, SUCCESS_PARTIAL = 3, WAIT_COMPLETE = 4,
+            SERVER_INFO_RESPONSE = 5, RUNTIME_ERROR = 18;
+
+    /**
+     * latency added to each response
+     */
+    public volatile long latencyMicros = 0;
+    /**
+     * latency added to a response per row read or written
+     */
+    public volatile long rowNanos = 0;
+    /**
+     * rows of each batch of a sequence if the query has no max_batch_rows
+     */
+    public volatile int batchRows = 1000;
+
+    final ServerSocket serverSocket;
+    final Thread acceptThread;
+    final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+    final byte[] salt = new byte[16];
+    /**
+     * tables of each database, guarded by itself
+     */
+    final Map<String, Map<String, Table>> dbs = new LinkedHashMap<>();
+
+    StubServer(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        new java.security.SecureRandom().nextBytes(salt);
+        acceptThread = new Thread(this::accept, "stub-server-" + port());
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        logger.info("stub server listens on {}", serverSocket.getLocalSocketAddress());
+    }
+
+    /**
+     * @param port 0 for any free port
+     */
+    public static StubServer start(int port) {
+        try {
+            return new StubServer(port);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public int port() {
+        return serverSocket.getLocalPort();
+    }
+
+    @Override
+    public void close() {
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            logger.warn("close stub server", e);
+        }
+        for (Socket socket : sockets) {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private void accept() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                sockets.add(socket);
+                Thread thread = new Thread(() -> serve(socket), "stub-server-" + socket.getPort());
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    logger.error("accept failed", e);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        Thread replyThread = null;
+        try (Socket unused = socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            handshake(in, out);
+            Replies replies = new Replies(out);
+            replyThread = new Thread(replies, "stub-server-replies-" + socket.getPort());
+            replyThread.setDaemon(true);
+            replyThread.start();
+            Map<Long, Cursor> cursors = new HashMap<>();
+            while (true) {
+                long token = Long.reverseBytes(in.readLong());
+                byte[] json = new byte[Integer.reverseBytes(in.readInt())];
+                in.readFully(json);
+                query(replies, cursors, token, (List<?>) new JSONParser().parse(new String(json, UTF_8)));
+            }
+        } catch (EOFException | SocketException e) {
+            logger.debug("connection closed", e);
+        } catch (IOException | ParseException | RuntimeException e) {
+            logger.error("connection failed", e);
+        } finally {
+            sockets.remove(socket);
+            if (replyThread != null) replyThread.interrupt();
+        }
+    }
+
+    /**
+     * V1_0 handshake with SCRAM-SHA-256 authentication, the client proof is not checked
+     */
+    private void handshake(DataInputStream in, OutputStream out) throws IOException, ParseException {
+        int magic = Integer.reverseBytes(in.readInt());
+        if (magic != V1_0) throw new IOException("unsupported protocol 0x" + Integer.toHexString(magic));
+        writeMessage(out, object("success", true, "min_protocol_version", 0, "max_protocol_version", 0,
+                "server_version", "2.3.0-stub"));
+
+        String clientFirst = (String) readMessage(in).get("authentication");
+        String clientFirstBare = clientFirst.substring(clientFirst.indexOf("n="));
+        String clientNonce = clientFirstBare.substring(clientFirstBare.indexOf("r=") + 2);
+        String serverFirst = "r=" + clientNonce + UUID.randomUUID().toString().replace("-", "")
+                + ",s=" + Base64.getEncoder().encodeToString(salt) + ",i=" + ITERATIONS;
+        writeMessage(out, object("success", true, "authentication", serverFirst));
+
+        String clientFinal = (String) readMessage(in).get("authentication");
+        String clientFinalWithoutProof = clientFinal.substring(0, clientFinal.indexOf(",p="));
+        String authMessage = clientFirstBare + "," + serverFirst + "," + clientFinalWithoutProof;
+        try {
+            byte[] saltedPassword = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256")
+                    .generateSecret(new PBEKeySpec(new char[0], salt, ITERATIONS, 256)).getEncoded();
+            byte[] serverSignature = hmac(hmac(saltedPassword, "Server Key"), authMessage);
+            writeMessage(out, object("success", true,
+                    "authentication", "v=" + Base64.getEncoder().encodeToString(serverSignature)));
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    static byte[] hmac(byte[] key, String message) throws GeneralSecurityException {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(key, "HmacSHA256"));
+        return mac.doFinal(message.getBytes(UTF_8));
+    }
+
+    static JSONObject readMessage(DataInputStream in) throws IOException, ParseException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        for (int b = in.readUnsignedByte(); b != 0; b = in.readUnsignedByte()) {
+            buf.write(b);
+        }
+        JSONObject message = (JSONObject) new JSONParser().parse(new String(buf.toByteArray(), UTF_8));
+        if (!message.containsKey("authentication")) throw new IOException("unexpected message " + message);
+        return message;
+    }
+
+    static void writeMessage(OutputStream out, JSONObject message) throws IOException {
+        out.write(message.toJSONString().getBytes(UTF_8));
+        out.write(0);
+        out.flush();
+    }
+
+    static JSONObject object(Object... keyValues) {
+        JSONObject obj = new JSONObject();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            obj.put(keyValues[i], keyValues[i + 1]);
+        }
+        return obj;
+    }
+
+    /**
+     * remaining rows of a sequence which are sent on continue
+     */
+    static class Cursor {
+        final Iterator<?> rows;
+        final int batchRows;
+
+        Cursor(Iterator<?> rows, int batchRows) {
+            this.rows = rows;
+            this.batchRows = batchRows;
+        }
+    }
+
+    private void query(Replies replies, Map<Long, Cursor> cursors, long token, List<?> query) {
+        int type = ((Number) query.get(0)).intValue();
+        switch (type) {
+            case START: {
+                Map<?, ?> globalOptArgs = query.size() > 2 ? (Map<?, ?>) query.get(2) : Collections.emptyMap();
+                Object result;
+                try {
+                    result = new Query(globalOptArgs).run(query.get(1));
+                } catch (RuntimeException e) {
+                    logger.debug("query {} failed", query, e);
+                    replies.add(token, RUNTIME_ERROR, Collections.singletonList(e instanceof ReqlError
+                            ? e.getMessage() : "StubServer: " + e), 0);
+                    return;
+                }
+                if (Boolean.TRUE.equals(globalOptArgs.get("noreply"))) return;
+                if (result instanceof Sequence) {
+                    Object maxBatchRows = globalOptArgs.get("max_batch_rows");
+                    Cursor cursor = new Cursor(((Sequence) result).rows.iterator(),
+                            maxBatchRows instanceof Number ? ((Number) maxBatchRows).intValue() : batchRows);
+                    nextBatch(replies, cursors, token, cursor);
+                } else {
+                    replies.add(token, SUCCESS_ATOM, Collections.singletonList(result), writtenRows(result));
+                }
+                return;
+            }
+            case CONTINUE: {
+                Cursor cursor = cursors.remove(token);
+                if (cursor == null) {
+                    replies.add(token, RUNTIME_ERROR, Collections.singletonList("Token " + token + " not in stream cache."), 0);
+                } else {
+                    nextBatch(replies, cursors, token, cursor);
+                }
+                return;
+            }
+            case STOP:
+                cursors.remove(token);
+                replies.add(token, SUCCESS_SEQUENCE, Collections.emptyList(), 0);
+                return;
+            case NOREPLY_WAIT:
+                replies.add(token, WAIT_COMPLETE, Collections.emptyList(), 0);
+                return;
+            case SERVER_INFO:
+                replies.add(token, SERVER_INFO_RESPONSE, Collections.singletonList(
+                        object("id", "stub", "name", "stub", "proxy", false)), 0);
+                return;
+            default:
+                replies.add(token, RUNTIME_ERROR, Collections.singletonList("unknown query type " + type), 0);
+        }
+    }
+
+    private void nextBatch(Replies replies, Map<Long, Cursor> cursors, long token, Cursor cursor) {
+        List<Object> batch = new ArrayList<>();
+        while (batch.size() < Math.max(1, cursor.batchRows) && cursor.rows.hasNext()) {
+            batch.add(cursor.rows.next());
+        }
+        if (cursor.rows.hasNext()) {
+            cursors.put(token, cursor);
+            replies.add(token, SUCCESS_PARTIAL, batch, batch.size());
+        } else {
+            replies.add(token, SUCCESS_SEQUENCE, batch, batch.size());
+        }
+    }
+
+    static long writtenRows(Object result) {
+        if (!(result instanceof Map) || !((Map<?, ?>) result).containsKey("inserted")) return 1;
+        long rows = 0;
+        for (String key : new String[]{"inserted", "replaced", "unchanged", "deleted"}) {
+            rows += ((Number) ((Map<?, ?>) result).get(key)).longValue();
+        }
+        return rows;
+    }
+
+    /**
+     * response with its header, to be written at dueNanos
+     */
+    static class Reply {
+        final long dueNanos;
+        final byte[] message;
+
+        Reply(long dueNanos, byte[] message) {
+            this.dueNanos = dueNanos;
+            this.message = message;
+        }
+    }
+
+    /**
+     * responses of a connection, written by its own thread in the order of the queries, each not before
+     * its due time. A reply is due at the latest of its own delay and the due time of the previous reply,
+     * so a short reply, e.g. to STOP, does not overtake the slower batch sent before it.
+     */
+    class Replies implements Runnable {
+        final OutputStream out;
+        final BlockingQueue<Reply> queue = new LinkedBlockingQueue<>();
+        /**
+         * due time of the last added reply, only used by the thread serving the connection
+         */
+        long lastDueNanos = System.nanoTime();
+
+        Replies(OutputStream out) {
+            this.out = out;
+        }
+
+        void add(long token, int type, List<?> r, long rows) {
+            byte[] json = ("{\"t\":" + type + ",\"r\":" + JSONValue.toJSONString(r)
+                    + (type == RUNTIME_ERROR ? ",\"b\":[]" : "") + "}").getBytes(UTF_8);
+            byte[] message = ByteBuffer.allocate(12 + json.length).order(ByteOrder.LITTLE_ENDIAN)
+                    .putLong(token).putInt(json.length).put(json).array();
+            long dueNanos = System.nanoTime() + latencyMicros * 1000 + rows * rowNanos;
+            //compared by difference, as nanoTime may overflow
+            if (dueNanos - lastDueNanos < 0) dueNanos = lastDueNanos;
+            lastDueNanos = dueNanos;
+            queue.add(new Reply(dueNanos, message));
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Reply reply = queue.take();
+                    long waitNanos = reply.dueNanos - System.nanoTime();
+                    if (waitNanos > 0) TimeUnit.NANOSECONDS.sleep(waitNanos);
+                    out.write(reply.message);
+                    if (queue.isEmpty()) out.flush();
+                }
+            } catch (InterruptedException e) {
+                logger.debug("replies stopped");
+            } catch (IOException e) {
+                logger.debug("reply failed", e);
+            }
+        }
+    }
+
+    /**
+     * error of a query, returned to the client as runtime error
+     */
+    static class ReqlError extends RuntimeException {
+        ReqlError(String message) {
+            super(message);
+        }
+    }
+
+    static class Table {
+        final String db;
+        final String name;
+        final String primaryKey;
+        int shards;
+        int replicas;
+        final Map<Object, JSONObject> docs = new LinkedHashMap<>();
+        /**
+         * function term of each secondary index
+         */
+        final Map<String, List<?>> indexes = new LinkedHashMap<>();
+
+        Table(String db, String name, String primaryKey, int shards, int replicas) {
+            this.db = db;
+            this.name = name;
+            this.primaryKey = primaryKey;
+            this.shards = shards;
+            this.replicas = replicas;
+        }
+
+        @Override
+        public String toString() {
+            return "`" + db + "." + name + "`";
+        }
+    }
+
+    static class Db {
+        final String name;
+
+        Db(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * stream of rows, returned in batches. Rows of a table can also be updated or deleted
+     */
+    static class Sequence {
+        final Table table;
+        final List<Object> rows;
+
+        Sequence(Table table, List<Object> rows) {
+            this.table = table;
+            this.rows = rows;
+        }
+    }
+
+    /**
+     * document of a table by primary key, which can be updated or deleted
+     */
+    static class Single {
+        final Table table;
+        final Object key;
+
+        Single(Table table, Object key) {
+            this.table = table;
+            this.key = key;
+        }
+    }
+
+    static class Func {
+        final List<?> params;
+        final Object body;
+        final Map<Object, Object> env;
+
+        Func(List<?> params, Object body, Map<Object, Object> env) {
+            this.params = params;
+            this.body = body;
+            this.env = env;
+        }
+    }
+
+    /**
+     * ascending order by a field, function or index
+     */
+    static class Order {
+        final Object key;
+
+        Order(Object key) {
+            this.key = key;
+        }
+    }
+
+    static final Object MINVAL = new Object();
+    static final Object MAXVAL = new Object();
+    static final Object NOT_INDEXED = new Object();
+    static final DateTimeFormatter ISO8601 = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSX");
+
+    /**
+     * evaluation of a query term, with all tables locked
+     */
+    class Query {
+        final String defaultDb;
+
+        Query(Map<?, ?> globalOptArgs) {
+            Object db = globalOptArgs.get("db");
+            this.defaultDb = db == null ? "test" : (String) ((List<?>) ((List<?>) db).get(1)).get(0);
+        }
+
+        Object run(Object term) {
+            synchronized (dbs) {
+                Object value = eval(term, Collections.emptyMap());
+                if (value instanceof Sequence || value instanceof Table) {
+                    //documents are replaced but never modified in place, so a copy of the list is a snapshot
+                    return new Sequence(null, new ArrayList<>(sequence(value).rows));
+                }
+                return datum(value);
+            }
+        }
+
+        Object eval(Object term, Map<Object, Object> env) {
+            if (term instanceof Map) {
+                JSONObject obj = new JSONObject();
+                ((Map<?, ?>) term).forEach((key, value) -> obj.put(key, datum(eval(value, env))));
+                return obj;
+            }
+            if (!(term instanceof List)) return term;
+
+            List<?> t = (List<?>) term;
+            int type = ((Number) t.get(0)).intValue();
+            List<?> args = t.size() > 1 ? (List<?>) t.get(1) : Collections.emptyList();
+            Map<?, ?> optArgs = t.size() > 2 ? (Map<?, ?>) t.get(2) : Collections.emptyMap();
+            switch (type) {
+                case 1: //DATUM
+                    return args.get(0);
+                case 2: { //MAKE_ARRAY
+                    JSONArray array = new JSONArray();
+                    for (Object arg : args) {
+                        array.add(datum(eval(arg, env)));
+                    }
+                    return array;
+                }
+                case 3: { //MAKE_OBJ
+                    JSONObject obj = new JSONObject();
+                    optArgs.forEach((key, value) -> obj.put(key, datum(eval(value, env))));
+                    return obj;
+                }
+                case 10: //VAR
+                    return env.get(((Number) args.get(0)).longValue());
+                case 12: //ERROR
+                    throw new ReqlError(String.valueOf(datum(eval(args.get(0), env))));
+                case 64: { //FUNCALL
+                    Func func = (Func) eval(args.get(0), env);
+                    Object[] values = new Object[args.size() - 1];
+                    for (int i = 1; i < args.size(); i++) {
+                        values[i - 1] = eval(args.get(i), env);
+                    }
+                    return call(func, values);
+                }
+                case 65: { //BRANCH
+                    for (int i = 0; i + 1 < args.size(); i += 2) {
+                        if (truthy(eval(args.get(i), env))) return eval(args.get(i + 1), env);
+                    }
+                    return eval(args.get(args.size() - 1), env);
+                }
+                case 67: { //AND
+                    Object value = true;
+                    for (Object arg : args) {
+                        if (!truthy(value = eval(arg, env))) return value;
+                    }
+                    return value;
+                }
+                case 69: //FUNC
+                    return new Func((List<?>) eval(args.get(0), env), args.get(1), env);
+            }
+
+            List<Object> a = new ArrayList<>(args.size());
+            for (Object arg : args) {
+                a.add(eval(arg, env));
+            }
+            Map<Object, Object> o = new HashMap<>();
+            optArgs.forEach((key, value) -> o.put(key, eval(value, env)));
+            return apply(type, a, o);
+        }
+
+        Object apply(int type, List<Object> a, Map<Object, Object> o) {
+            switch (type) {
+                case 14: //DB
+                    return new Db((String) a.get(0));
+                case 15: //TABLE
+                    return a.size() > 1 ? table(((Db) a.get(0)).name, (String) a.get(1)) : table(defaultDb, (String) a.get(0));
+                case 59: //DB_LIST
+                    return array((dbs.keySet()));
+                case 57: { //DB_CREATE
+                    String name = (String) a.get(0);
+                    if (dbs.containsKey(name)) throw new ReqlError("Database `" + name + "` already exists.");
+                    dbs.put(name, new LinkedHashMap<>());
+                    return object("dbs_created", 1L);
+                }
+                case 62: //TABLE_LIST
+                    return array((tables(dbName(a)).keySet()));
+                case 60: { //TABLE_CREATE
+                    String db = dbName(a);
+                    String name = (String) a.get(a.size() - 1);
+                    Map<String, Table> tables = tables(db);
+                    if (tables.containsKey(name)) throw new ReqlError("Table `" + db + "." + name + "` already exists.");
+                    tables.put(name, new Table(db, name, (String) o.getOrDefault("primary_key", "id"),
+                            intOption(o, "shards"), intOption(o, "replicas")));
+                    return object("tables_created", 1L);
+                }
+                case 61: { //TABLE_DROP
+                    String db = dbName(a);
+                    String name = (String) a.get(a.size() - 1);
+                    if (tables(db).remove(name) == null) throw new ReqlError("Table `" + db + "." + name + "` does not exist.");
+                    return object("tables_dropped", 1L);
+                }
+                case 177: //WAIT
+                    return object("ready", a.get(0) instanceof Db ? (long) tables(((Db) a.get(0)).name).size() : 1L);
+                case 174: //CONFIG
+                    return config((Table) a.get(0));
+                case 176: { //RECONFIGURE
+                    Table table = (Table) a.get(0);
+                    table.shards = intOption(o, "shards");
+                    table.replicas = intOption(o, "replicas");
+                    return object("reconfigured", 1L);
+                }
+                case 79: { //INFO
+                    Table table = (Table) a.get(0);
+                    return object("type", "TABLE", "name", table.name, "primary_key", table.primaryKey,
+                            "db", object("type", "DB", "name", table.db),
+                            "indexes", array((table.indexes.keySet())));
+                }
+                case 75: { //INDEX_CREATE
+                    Table table = (Table) a.get(0);
+                    String name = (String) a.get(1);
+                    if (table.indexes.containsKey(name)) throw new ReqlError("Index `" + name + "` already exists on table " + table + ".");
+                    table.indexes.put(name, a.size() > 2 ? indexFunction(a.get(2)) : fieldFunction(name));
+                    return object("created", 1L);
+                }
+                case 77: //INDEX_LIST
+                    return array((((Table) a.get(0)).indexes.keySet()));
+                case 139: //INDEX_STATUS
+                case 140: { //INDEX_WAIT
+                    Table table = (Table) a.get(0);
+                    JSONArray statuses = new JSONArray();
+                    for (String name : a.size() > 1 ? strings(a.subList(1, a.size())) : table.indexes.keySet()) {
+                        List<?> function = table.indexes.get(name);
+                        if (function == null) throw new ReqlError("Index `" + name + "` was not found on table " + table + ".");
+                        statuses.add(object("index", name, "ready", true, "multi", false, "geo", false, "outdated", false,
+                                "function", object("$reql_type$", "BINARY",
+                                        "data", Base64.getEncoder().encodeToString(JSONValue.toJSONString(function).getBytes(UTF_8))),
+                                "query", "indexCreate('" + name + "', " + JSONValue.toJSONString(function) + ")"));
+                    }
+                    return statuses;
+                }
+                case 16: { //GET
+                    return new Single((Table) a.get(0), a.get(1));
+                }
+                case 78: { //GET_ALL
+                    Table table = (Table) a.get(0);
+                    String index = (String) o.getOrDefault("index", table.primaryKey);
+                    List<Object> rows = new ArrayList<>();
+                    if (index.equals(table.primaryKey)) {
+                        for (Object key : a.subList(1, a.size())) {
+                            JSONObject doc = table.docs.get(key);
+                            if (doc != null) rows.add(doc);
+                        }
+                    } else {
+                        List<?> function = index(table, index);
+                        for (JSONObject doc : table.docs.values()) {
+                            Object value = indexValue(function, doc);
+                            for (Object key : a.subList(1, a.size())) {
+                                if (value != NOT_INDEXED && compare(value, key) == 0) {
+                                    rows.add(doc);
+                                    break;
+                                }
+                            }
+                        }
+                    }
+                    return new Sequence(table, rows);
+                }
+                case 182: { //BETWEEN
+                    Sequence source = sequence(a.get(0));
+                    String index = (String) o.getOrDefault("index", source.table.primaryKey);
+                    List<?> function = index.equals(source.table.primaryKey) ? fieldFunction(index) : index(source.table, index);
+                    boolean leftOpen = "open".equals(o.get("left_bound"));
+                    boolean rightClosed = "closed".equals(o.get("right_bound"));
+                    List<Object> rows = new ArrayList<>();
+                    for (Object doc : source.rows) {
+                        Object value = indexValue(function, doc);
+                        if (value == NOT_INDEXED) continue;
+                        int lower = compare(value, a.get(1));
+                        int upper = compare(value, a.get(2));
+                        if ((leftOpen ? lower > 0 : lower >= 0) && (rightClosed ? upper <= 0 : upper < 0)) {
+                            rows.add(doc);
+                        }
+                    }
+                    return new Sequence(source.table, rows);
+                }
+                case 41: { //ORDER_BY
+                    Sequence source = sequence(a.get(0));
+                    List<Order> orders = new ArrayList<>();
+                    Object index = o.get("index");
+                    if (index != null) {
+                        String name = (String) (index instanceof Order ? ((Order) index).key : index);
+                        orders.add(new Order(name.equals(source.table.primaryKey) ? fieldFunction(name)
+                                : index(source.table, name)));
+                    }
+                    for (Object arg : a.subList(1, a.size())) {
+                        Object key = arg instanceof Order ? ((Order) arg).key : arg;
+                        orders.add(new Order(key instanceof String ? fieldFunction((String) key) : key));
+                    }
+                    List<Object[]> keyed = new ArrayList<>();
+                    for (Object row : source.rows) {
+                        Object[] keys = new Object[orders.size() + 1];
+                        keys[0] = row;
+                        for (int i = 0; i < orders.size(); i++) {
+                            Object key = orders.get(i).key;
+                            keys[i + 1] = key instanceof Func ? call((Func) key, row) : indexValue((List<?>) key, row);
+                        }
+                        if (index == null || keys[1] != NOT_INDEXED) keyed.add(keys);
+                    }
+                    keyed.sort((x, y) -> {
+                        for (int i = 0; i < orders.size(); i++) {
+                            int c = compare(x[i + 1], y[i + 1]);
+                            if (c != 0) return c;
+                        }
+                        return 0;
+                    });
+                    List<Object> rows = new ArrayList<>(keyed.size());
+                    keyed.forEach(keys -> rows.add(keys[0]));
+                    return a.get(0) instanceof List ? array(rows) : new Sequence(source.table, rows);
+                }
+                case 73: //ASC
+                    return new Order(a.get(0));
+                case 180: //MINVAL
+                    return MINVAL;
+                case 181: //MAXVAL
+                    return MAXVAL;
+                case 71: { //LIMIT
+                    Sequence source = sequence(a.get(0));
+                    int n = (int) Math.min(source.rows.size(), ((Number) a.get(1)).longValue());
+                    return keep(a.get(0), source, new ArrayList<>(source.rows.subList(0, n)));
+                }
+                case 39: { //FILTER
+                    Sequence source = sequence(a.get(0));
+                    List<Object> rows = new ArrayList<>();
+                    for (Object row : source.rows) {
+                        if (matches(a.get(1), row)) rows.add(row);
+                    }
+                    return keep(a.get(0), source, rows);
+                }
+                case 43: { //COUNT
+                    Object value = datum(a.get(0));
+                    if (value instanceof String) return (long) ((String) value).length();
+                    if (value instanceof Map) return (long) ((Map<?, ?>) value).size();
+                    long count = 0;
+                    for (Object row : sequence(a.get(0)).rows) {
+                        if (a.size() == 1 || matches(a.get(1), row)) count++;
+                    }
+                    return count;
+                }
+                case 86: //IS_EMPTY
+                    return sequence(a.get(0)).rows.isEmpty();
+                case 45: //NTH
+                    return nth(sequence(a.get(0)).rows, ((Number) a.get(1)).intValue());
+                case 93: { //CONTAINS
+                    List<Object> rows = sequence(a.get(0)).rows;
+                    for (Object predicate : a.subList(1, a.size())) {
+                        boolean found = false;
+                        for (Object row : rows) {
+                            if (predicate instanceof Func ? truthy(call((Func) predicate, row)) : compare(row, datum(predicate)) == 0) {
+                                found = true;
+                                break;
+                            }
+                        }
+                        if (!found) return false;
+                    }
+                    return true;
+                }
+                case 42: { //DISTINCT
+                    Sequence source = sequence(a.get(0));
+                    Object index = o.get("index");
+                    List<?> function = index == null ? null
+                            : index.equals(source.table.primaryKey) ? fieldFunction((String) index) : index(source.table, (String) index);
+                    TreeSet<Object> values = new TreeSet<>(StubServer::compare);
+                    for (Object row : source.rows) {
+                        Object value = function == null ? row : indexValue(function, row);
+                        if (value != NOT_INDEXED) values.add(value);
+                    }
+                    return index == null ? array((values)) : new Sequence(null, new ArrayList<>(values));
+                }
+                case 145: //SUM
+                case 147: //MIN
+                case 148: { //MAX
+                    Sequence source = sequence(a.get(0));
+                    Object index = o.get("index");
+                    Object field = index != null ? (index.equals(source.table.primaryKey) ? fieldFunction((String) index) : index(source.table, (String) index))
+                            : a.size() > 1 ? (a.get(1) instanceof Func ? a.get(1) : fieldFunction((String) a.get(1))) : null;
+                    double sum = 0;
+                    Object best = null;
+                    Object bestValue = null;
+                    for (Object row : source.rows) {
+                        Object value = field == null ? row : field instanceof Func ? call((Func) field, row) : indexValue((List<?>) field, row);
+                        if (value == NOT_INDEXED) continue;
+                        if (type == 145) {
+                            sum += ((Number) value).doubleValue();
+                        } else if (best == null || (type == 147 ? compare(value, bestValue) < 0 : compare(value, bestValue) > 0)) {
+                            best = row;
+                            bestValue = value;
+                        }
+                    }
+                    if (type == 145) return sum == Math.rint(sum) ? (Object) (long) sum : sum;
+                    if (best == null) throw new ReqlError("Cannot take the " + (type == 147 ? "min" : "max") + " of an empty stream.");
+                    return best;
+                }
+                case 31: { //GET_FIELD
+                    Object key = a.get(1);
+                    Object value = datum(a.get(0));
+                    if (value instanceof Map) return field((Map<?, ?>) value, (String) key);
+                    JSONArray values = new JSONArray();
+                    for (Object row : sequence(value).rows) {
+                        if (((Map<?, ?>) row).containsKey(key)) values.add(((Map<?, ?>) row).get(key));
+                    }
+                    return values;
+                }
+                case 32: { //HAS_FIELDS
+                    List<String> fields = strings(a.subList(1, a.size()));
+                    Object value = datum(a.get(0));
+                    if (value instanceof Map) return hasFields((Map<?, ?>) value, fields);
+                    Sequence source = sequence(a.get(0));
+                    List<Object> rows = new ArrayList<>();
+                    for (Object row : source.rows) {
+                        if (hasFields((Map<?, ?>) row, fields)) rows.add(row);
+                    }
+                    return keep(a.get(0), source, rows);
+                }
+                case 33: //PLUCK
+                case 34: { //WITHOUT
+                    List<String> fields = strings(a.subList(1, a.size()));
+                    Object value = datum(a.get(0));
+                    if (value instanceof Map) return project((Map<?, ?>) value, fields, type == 33);
+                    JSONArray rows = new JSONArray();
+                    for (Object row : sequence(value).rows) {
+                        rows.add(project((Map<?, ?>) row, fields, type == 33));
+                    }
+                    return rows;
+                }
+                case 17: //EQ
+                case 18: //NE
+                case 19: //LT
+                case 21: { //GT
+                    for (int i = 0; i + 1 < a.size(); i++) {
+                        int c = compare(datum(a.get(i)), datum(a.get(i + 1)));
+                        boolean holds = type == 17 ? c == 0 : type == 18 ? c != 0 : type == 19 ? c < 0 : c > 0;
+                        if (!holds) return false;
+                    }
+                    return true;
+                }
+                case 23: //NOT
+                    return !truthy(a.get(0));
+                case 25: { //SUB
+                    boolean integral = true;
+                    double sum = 0;
+                    for (int i = 0; i < a.size(); i++) {
+                        Number value = (Number) datum(a.get(i));
+                        integral &= !(value instanceof Double);
+                        sum += i == 0 ? value.doubleValue() : -value.doubleValue();
+                    }
+                    return integral ? (Object) (long) sum : sum;
+                }
+                case 99: //ISO8601
+                    return time(OffsetDateTime.parse((String) a.get(0), ISO8601));
+                case 56: //INSERT
+                    return insert((Table) a.get(0), datum(a.get(1)), (String) o.getOrDefault("conflict", "error"));
+                case 53: //UPDATE
+                case 55: //REPLACE
+                    return write(a.get(0), a.get(1), type == 53);
+                case 54: //DELETE
+                    return write(a.get(0), null, false);
+                default:
+                    throw new ReqlError("term type " + type + " is not supported by StubServer");
+            }
+        }
+
+        Object call(Func func, Object... values) {
+            Map<Object, Object> env = new HashMap<>(func.env);
+            for (int i = 0; i < func.params.size(); i++) {
+                env.put(((Number) func.params.get(i)).longValue(), i < values.length ? values[i] : null);
+            }
+            return eval(func.body, env);
+        }
+
+        boolean matches(Object predicate, Object row) {
+            if (predicate instanceof Func) return truthy(call((Func) predicate, row));
+            if (predicate instanceof Map) {
+                for (Map.Entry<?, ?> e : ((Map<?, ?>) predicate).entrySet()) {
+                    Map<?, ?> doc = (Map<?, ?>) row;
+                    if (!doc.containsKey(e.getKey()) || compare(doc.get(e.getKey()), e.getValue()) != 0) return false;
+                }
+                return true;
+            }
+            return compare(row, predicate) == 0;
+        }
+
+        Object indexValue(List<?> function, Object doc) {
+            Func func = (Func) eval(function, Collections.emptyMap());
+            try {
+                return datum(call(func, doc));
+            } catch (ReqlError e) {
+                return NOT_INDEXED;
+            }
+        }
+
+        List<?> index(Table table, String name) {
+            List<?> function = table.indexes.get(name);
+            if (function == null) throw new ReqlError("Index `" + name + "` was not found on table " + table + ".");
+            return function;
+        }
+
+        /**
+         * @param function function term, or binary of the function term as returned by index_status
+         */
+        List<?> indexFunction(Object function) {
+            if (function instanceof Func) {
+                Func func = (Func) function;
+                return list(69L, list(list(2L, func.params), func.body));
+            }
+            try {
+                Map<?, ?> binary = (Map<?, ?>) function;
+                return (List<?>) new JSONParser().parse(new String(Base64.getMimeDecoder().decode((String) binary.get("data")), UTF_8));
+            } catch (ParseException e) {
+                throw new ReqlError("invalid index function " + function);
+            }
+        }
+
+        Map<String, Table> tables(String db) {
+            Map<String, Table> tables = dbs.get(db);
+            if (tables == null) throw new ReqlError("Database `" + db + "` does not exist.");
+            return tables;
+        }
+
+        Table table(String db, String name) {
+            Table table = tables(db).get(name);
+            if (table == null) throw new ReqlError("Table `" + db + "." + name + "` does not exist.");
+            return table;
+        }
+
+        String dbName(List<Object> a) {
+            return !a.isEmpty() && a.get(0) instanceof Db ? ((Db) a.get(0)).name : defaultDb;
+        }
+
+        JSONObject config(Table table) {
+            JSONArray shards = new JSONArray();
+            for (int i = 0; i < table.shards; i++) {
+                JSONArray replicas = new JSONArray();
+                for (int j = 0; j < table.replicas; j++) {
+                    replicas.add("stub" + (i + j) % table.replicas);
+                }
+                shards.add(object("primary_replica", replicas.get(0), "nonvoting_replicas", new JSONArray(), "replicas", replicas));
+            }
+            return object("db", table.db, "name", table.name, "primary_key", table.primaryKey,
+                    "shards", shards, "indexes", array((table.indexes.keySet())),
+                    "durability", "hard", "write_acks", "majority");
+        }
+
+        JSONObject insert(Table table, Object data, String conflict) {
+            long inserted = 0, replaced = 0, unchanged = 0, errors = 0;
+            String firstError = null;
+            JSONArray generatedKeys = new JSONArray();
+            for (Object row : data instanceof List ? (List<?>) data : Collections.singletonList(data)) {
+                JSONObject doc = new JSONObject();
+                doc.putAll((Map<?, ?>) row);
+                Object key = doc.get(table.primaryKey);
+                if (key == null) {
+                    key = UUID.randomUUID().toString();
+                    doc.put(table.primaryKey, key);
+                    generatedKeys.add(key);
+                }
+                JSONObject old = table.docs.get(key);
+                if (old == null) {
+                    inserted++;
+                } else if ("error".equals(conflict)) {
+                    errors++;
+                    if (firstError == null) {
+                        firstError = "Duplicate primary key `" + table.primaryKey + "`:\n" + old + "\n" + doc;
+                    }
+                    continue;
+                } else {
+                    if ("update".equals(conflict)) {
+                        JSONObject merged = new JSONObject();
+                        merged.putAll(old);
+                        merged.putAll(doc);
+                        doc = merged;
+                    }
+                    if (compare(old, doc) == 0) {
+                        unchanged++;
+                        continue;
+                    }
+                    replaced++;
+                }
+                table.docs.put(key, doc);
+            }
+            JSONObject result = writeResult(inserted, replaced, unchanged, 0, errors, firstError);
+            if (!generatedKeys.isEmpty()) {
+                result.put("generated_keys", generatedKeys);
+            }
+            return result;
+        }
+
+        /**
+         * update, replace or delete (spec null) the documents of selection
+         */
+        JSONObject write(Object selection, Object spec, boolean update) {
+            Table table;
+            List<Object> rows;
+            if (selection instanceof Single) {
+                table = ((Single) selection).table;
+                JSONObject doc = table.docs.get(((Single) selection).key);
+                rows = doc == null ? Collections.emptyList() : Collections.singletonList(doc);
+            } else {
+                Sequence source = sequence(selection);
+                if (source.table == null) throw new ReqlError("Expected type SELECTION but found DATUM.");
+                table = source.table;
+                rows = source.rows;
+            }
+            long replaced = 0, unchanged = 0, deleted = 0, errors = 0;
+            long skipped = selection instanceof Single && rows.isEmpty() ? 1 : 0;
+            String firstError = null;
+            for (Object row : rows) {
+                JSONObject old = (JSONObject) row;
+                Object key = old.get(table.primaryKey);
+                if (spec == null && !update) {
+                    table.docs.remove(key);
+                    deleted++;
+                    continue;
+                }
+                Object value;
+                try {
+                    value = datum(spec instanceof Func ? call((Func) spec, old) : spec);
+                } catch (ReqlError e) {
+                    errors++;
+                    firstError = firstError == null ? e.getMessage() : firstError;
+                    continue;
+                }
+                JSONObject doc = new JSONObject();
+                if (update) {
+                    doc.putAll(old);
+                }
+                if (value == null) {
+                    if (!update) {
+                        table.docs.remove(key);
+                        deleted++;
+                        continue;
+                    }
+                } else {
+                    doc.putAll((Map<?, ?>) value);
+                }
+                if (compare(key, doc.get(table.primaryKey)) != 0) {
+                    errors++;
+                    firstError = firstError == null ? "Primary key `" + table.primaryKey + "` cannot be changed." : firstError;
+                } else if (compare(old, doc) == 0) {
+                    unchanged++;
+                } else {
+                    table.docs.put(key, doc);
+                    replaced++;
+                }
+            }
+            JSONObject result = writeResult(0, replaced, unchanged, deleted, errors, firstError);
+            result.put("skipped", skipped);
+            return result;
+        }
+
+        /**
+         * @return table, selection or array as a sequence
+         */
+        Sequence sequence(Object value) {
+            if (value instanceof Sequence) return (Sequence) value;
+            if (value instanceof Table) return new Sequence((Table) value, new ArrayList<>(((Table) value).docs.values()));
+            Object datum = datum(value);
+            if (datum instanceof List) return new Sequence(null, new ArrayList<>((List<?>) datum));
+            throw new ReqlError("Expected type SEQUENCE but found " + typeName(datum) + ".");
+        }
+
+        /**
+         * @return rows as the same kind of sequence as original, i.e. an array stays an array
+         */
+        Object keep(Object original, Sequence source, List<Object> rows) {
+            return original instanceof List ? array(rows) : new Sequence(source.table, rows);
+        }
+
+        /**
+         * @return value as JSON value, i.e. a document for a single selection and an array for a sequence
+         */
+        Object datum(Object value) {
+            if (value instanceof Single) return ((Single) value).table.docs.get(((Single) value).key);
+            if (value instanceof Table || value instanceof Sequence) return array(sequence(value).rows);
+            if (value instanceof Db || value instanceof Func || value instanceof Order || value == MINVAL || value == MAXVAL) {
+                throw new ReqlError("Query result must be of type DATUM, GROUPED_DATA, or STREAM.");
+            }
+            return value;
+        }
+
+        boolean truthy(Object value) {
+            Object datum = datum(value);
+            return datum != null && !Boolean.FALSE.equals(datum);
+        }
+    }
+
+    static JSONObject writeResult(long inserted, long replaced, long unchanged, long deleted, long errors, String firstError) {
+        JSONObject result = object("inserted", inserted, "replaced", replaced, "unchanged", unchanged,
+                "deleted", deleted, "skipped", 0L, "errors", errors);
+        if (firstError != null) {
+            result.put("first_error", firstError);
+        }
+        return result;
+    }
+
+    static JSONArray array(Collection<?> values) {
+        JSONArray array = new JSONArray();
+        array.addAll(values);
+        return array;
+    }
+
+    static List<Object> list(Object... values) {
+        return array(java.util.Arrays.asList(values));
+    }
+
+    /**
+     * function term of an index on a single field
+     */
+    static List<?> fieldFunction(String field) {
+        return list(69L, list(list(2L, list(1L)), list(31L, list(list(10L, list(1L)), field))));
+    }
+
+    static int intOption(Map<Object, Object> optArgs, String name) {
+        Object value = optArgs.get(name);
+        return value == null ? 1 : ((Number) value).intValue();
+    }
+
+    static List<String> strings(Collection<Object> values) {
+        List<String> strings = new ArrayList<>();
+        values.forEach(value -> strings.add((String) value));
+        return strings;
+    }
+
+    static Object field(Map<?, ?> doc, String key) {
+        if (!doc.containsKey(key)) throw new ReqlError("No attribute `" + key + "` in object:\n" + JSONValue.toJSONString(doc));
+        return doc.get(key);
+    }
+
+    static boolean hasFields(Map<?, ?> doc, List<String> fields) {
+        for (String field : fields) {
+            if (doc.get(field) == null) return false;
+        }
+        return true;
+    }
+
+    static JSONObject project(Map<?, ?> doc, List<String> fields, boolean keep) {
+        JSONObject projected = new JSONObject();
+        doc.forEach((key, value) -> {
+            if (fields.contains(key) == keep) projected.put(key, value);
+        });
+        return projected;
+    }
+
+    static Object nth(List<Object> rows, int i) {
+        int index = i < 0 ? rows.size() + i : i;
+        if (index < 0 || index >= rows.size()) throw new ReqlError("Index out of bounds: " + i);
+        return rows.get(index);
+    }
+
+    static JSONObject time(OffsetDateTime dateTime) {
+        return object("$reql_type$", "TIME", "epoch_time", dateTime.toEpochSecond() + dateTime.getNano() / 1e9,
+                "timezone", dateTime.getOffset().getTotalSeconds() == 0 ? "+00:00" : dateTime.getOffset().getId());
+    }
+
+    static boolean isTime(Object value) {
+        return value instanceof Map && "TIME".equals(((Map<?, ?>) value).get("$reql_type$"));
+    }
+
+    static String typeName(Object value) {
+        return value == null ? "NULL" : value instanceof Map ? "OBJECT" : value instanceof String ? "STRING"
+                : value instanceof Number ? "NUMBER" : value instanceof Boolean ? "BOOL" : "DATUM";
+    }
+
+    /**
+     * rank of a type in the sort order of the server: arrays, booleans, null, numbers, objects, times, strings
+     */
+    static int rank(Object value) {
+        if (value == MINVAL) return 0;
+        if (value instanceof List) return 1;
+        if (value instanceof Boolean) return 2;
+        if (value == null) return 3;
+        if (value instanceof Number) return 4;
+        if (isTime(value)) return 6;
+        if (value instanceof Map) return 5;
+        if (value instanceof String) return 7;
+        return 8; //MAXVAL
+    }
+
+    static int compare(Object x, Object y) {
+        int rx = rank(x), ry = rank(y);
+        if (rx != ry) return Integer.compare(rx, ry);
+        switch (rx) {
+            case 1: {
+                List<?> lx = (List<?>) x, ly = (List<?>) y;
+                for (int i = 0; i < Math.min(lx.size(), ly.size()); i++) {
+                    int c = compare(lx.get(i), ly.get(i));
+                    if (c != 0) return c;
+                }
+                return Integer.compare(lx.size(), ly.size());
+            }
+            case 2:
+                return Boolean.compare((Boolean) x, (Boolean) y);
+            case 4:
+                return x instanceof Long && y instanceof Long ? Long.compare((Long) x, (Long) y)
+                        : Double.compare(((Number) x).doubleValue(), ((Number) y).doubleValue());
+            case 5: {
+                List<Object> keys = new ArrayList<>(new TreeSet<Object>(((Map<?, ?>) x).keySet()));
+                List<Object> otherKeys = new ArrayList<>(new TreeSet<Object>(((Map<?, ?>) y).keySet()));
+                int c = compare(keys, otherKeys);
+                if (c != 0) return c;
+                for (Object key : keys) {
+                    c = compare(((Map<?, ?>) x).get(key), ((Map<?, ?>) y).get(key));
+                    if (c != 0) return c;
+                }
+                return 0;
+            }
+            case 6:
+                return Double.compare(((Number) ((Map<?, ?>) x).get("epoch_time")).doubleValue(),
+                        ((Number) ((Map<?, ?>) y).get("epoch_time")).doubleValue());
+            case 7:
+                return ((String) x).compareTo((String) y);
+            default:
+                return 0;
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package util;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import util.DataGenerator.Table;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static com.rethinkdb.RethinkDB.r;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class StubServerTest {
+    StubServer server;
+    Database db;
+
+    @Before
+    public void start() {
+        server = StubServer.start(0);
+        db = new Database("test", "localhost", server.port());
+        db.metrics = new Metrics();
+    }
+
+    @After
+    public void stop() {
+        db.pool.close();
+        db.c.close();
+        server.close();
+    }
+
+    @Test
+    public void load_and_read() {
+        DataGenerator data = DataGeneratorTest.newGenerator(100, 50, 200, 3);
+        db.recreateTable("bookings", "bookingId");
+        db.createIndex("bookings", "tourId");
+        db.createIndex("bookings", "tourIdAndStatus", new String[]{"tourId", "status"});
+        db.batchRows = 30;
+        db.pipelineDepth = 2;
+
+        long count = data.indexCount(Table.bookings);
+        assertEquals(count, db.bulkInsert("bookings", count, (iRow, iBooking) -> data.booking(iBooking)));
+        assertEquals(count, db.getTableRowCount("bookings"));
+
+        Map<String, Object> booking = db.get("bookings", data.bookingId(7));
+        assertEquals(data.bookingId(7), booking.get("bookingId"));
+        assertEquals(data.booking(7).get("tourId"), booking.get("tourId"));
+        assertNull(db.get("bookings", "missing"));
+
+        List<String> tourIds = new ArrayList<>();
+        try (Scan<Map<String, Object>> scan = db.<Map<String, Object>>scan("bookings", "tourId").maxBatchRows(16)) {
+            scan.forEach(row -> tourIds.add((String) row.get("tourId")));
+        }
+        assertEquals(count, tourIds.size());
+        for (int i = 1; i < tourIds.size(); i++) {
+            assertTrue(tourIds.get(i - 1).compareTo(tourIds.get(i)) <= 0);
+        }
+
+        String tourId = data.tourId(3);
+        long ofTour = r.table("bookings").getAll(r.array(tourId, "approved")).optArg("index", "tourIdAndStatus")
+                .count().run(db.c);
+        assertEquals(3, ofTour);
+
+        db.deleteAllData("bookings");
+        assertEquals(0, db.getTableRowCount("bookings"));
+    }
+
+    @Test
+    public void truncate_keeps_schema() {
+        DataGenerator data = DataGeneratorTest.newGenerator(100, 50, 200, 3);
+        db.recreateTable("bookings", "bookingId", 2, 1);
+        db.createIndex("bookings", "tourIdAndStatus", new String[]{"tourId", "status"});
+        long count = data.indexCount(Table.bookings);
+        db.bulkInsert("bookings", count, (iRow, iBooking) -> data.booking(iBooking));
+
+        db.truncate("bookings");
+        assertEquals(0, db.getTableRowCount("bookings"));
+        assertEquals("bookingId", r.table("bookings").info().g("primary_key").run(db.c));
+        assertEquals(2L, (long) r.table("bookings").config().g("shards").count().run(db.c));
+
+        db.bulkInsert("bookings", count, (iRow, iBooking) -> data.booking(iBooking));
+        long ofTour = r.table("bookings").getAll(r.array(data.tourId(3), "approved")).optArg("index", "tourIdAndStatus")
+                .count().run(db.c);
+        assertEquals(3, ofTour);
+    }
+
+    @Test
+    public void close_scan_while_reader_waits_for_batch() throws InterruptedException {
+        DataGenerator data = DataGeneratorTest.newGenerator(100, 50, 200, 3);
+        db.recreateTable("bookings", "bookingId");
+        db.bulkInsert("bookings", data.indexCount(Table.bookings), (iRow, iBooking) -> data.booking(iBooking));
+
+        server.latencyMicros = 300000;
+        Scan<Map<String, Object>> scan = db.<Map<String, Object>>scan(r.table("bookings"), "slow").maxBatchRows(10);
+        assertTrue(scan.hasNext());
+        Thread.sleep(50); //the reader waits for the reply of CONTINUE
+        scan.close();
+
+        assertFalse("reader stopped before the connection is returned", scan.reader.isAlive());
+        server.latencyMicros = 0;
+        assertEquals(data.bookingCount, db.getTableRowCount("bookings"));
+    }
+
+    @Test
+    public void duplicate_key_fails() {
+        db.recreateTable("users", "userId");
+        db.bulkInsert("users", java.util.Collections.singletonList(r.hashMap("userId", "u1")));
+        try {
+            db.bulkInsert("users", java.util.Collections.singletonList(r.hashMap("userId", "u1")));
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("Duplicate primary key"));
+            return;
+        }
+        throw new AssertionError("second insert should fail");
+    }
+
+    @Test
+    public void slow_reply_is_not_overtaken() throws Exception {
+        server.rowNanos = 1_000_000;
+        List<String> expected = Arrays.asList("1 {\"t\":3,\"r\":[\"a\"]}", "1 {\"t\":2,\"r\":[]}", "2 {\"t\":1,\"r\":[\"b\"]}");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StubServer.Replies replies = server.new Replies(out);
+        Thread thread = new Thread(replies);
+        thread.start();
+        replies.add(1, StubServer.SUCCESS_PARTIAL, Collections.singletonList("a"), 50);
+        replies.add(1, StubServer.SUCCESS_SEQUENCE, Collections.emptyList(), 0);
+        replies.add(2, StubServer.SUCCESS_ATOM, Collections.singletonList("b"), 0);
+        while (out.size() < expected.stream().mapToInt(response -> 12 + response.length() - 2).sum()) {
+            Thread.sleep(10);
+        }
+        thread.interrupt();
+        thread.join();
+
+        ByteBuffer buf = ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        List<String> responses = new ArrayList<>();
+        while (buf.hasRemaining()) {
+            long token = buf.getLong();
+            byte[] json = new byte[buf.getInt()];
+            buf.get(json);
+            responses.add(token + " " + new String(json, UTF_8));
+        }
+        assertEquals(expected, responses);
+    }
+}
@@ -0,0 +1,81 @@
+package util;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.util.function.DoubleUnaryOperator;
+
+/**
+ * Generator of the createdAt of the i-th of count rows.
+ * <p>
+ * Except now(), timestamps are a pure function of the row index: the position (i + 0.5) / count is mapped
+ * by a curve to a point of [start, start + span), without reading the clock. All curves are increasing,
+ * so rows with larger ids are newer, as in production.
+ */
+public interface Timestamps {
+
+    OffsetDateTime at(long i, long count);
+
+    /**
+     * the clock when the row is generated, e.g. to measure changefeed lag
+     */
+    static Timestamps now() {
+        return (i, count) -> OffsetDateTime.now();
+    }
+
+    /**
+     * @param curve maps the position of a row in [0, 1) to its position in the span in [0, 1)
+     */
+    static Timestamps distribution(Instant start, Duration span, DoubleUnaryOperator curve) {
+        long startMillis = start.toEpochMilli();
+        long spanMillis = span.toMillis();
+        return (i, count) -> {
+            double position = curve.applyAsDouble((i + 0.5) / Math.max(1, count));
+            long millis = startMillis + Math.min((long) (Math.max(position, 0) * spanMillis), spanMillis - 1);
+            return OffsetDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneOffset.UTC);
+        };
+    }
+
+    static Timestamps uniform(Instant start, Duration span) {
+        return distribution(start, span, position -> position);
+    }
+
+    /**
+     * rows created in bursts: the span is split in periods, and the rows of each period are created
+     * in its first burstWidth (fraction of the period)
+     */
+    static Timestamps bursty(Instant start, Duration span, int bursts, double burstWidth) {
+        return distribution(start, span, position -> {
+            double burst = Math.floor(position * bursts);
+            return (burst + (position * bursts - burst) * burstWidth) / bursts;
+        });
+    }
+
+    /**
+     * more rows toward the end of the span, skew 1 is uniform, larger is more recent
+     */
+    static Timestamps recent(Instant start, Duration span, double skew) {
+        return distribution(start, span, position -> Math.pow(position, 1 / skew));
+    }
+
+    /**
+     * @param spec "now", "uniform", "bursty[:bursts[:burstWidth]]" or "recent[:skew]", e.g. "bursty:50:0.05"
+     */
+    static Timestamps of(String spec, Instant start, Duration span) {
+        String[] args = spec.split(":");
+        switch (args[0]) {
+            case "now":
+                return now();
+            case "uniform":
+                return uniform(start, span);
+            case "bursty":
+                return bursty(start, span,
+                        args.length > 1 ? Integer.valueOf(args[1]) : 50,
+                        args.length > 2 ? Double.valueOf(args[2]) : 0.05);
+            case "recent":
+                return recent(start, span, args.length > 1 ? Double.valueOf(args[1]) : 3);
+        }
+        throw new IllegalArgumentException("unknown timestamps: " + spec);
+    }
+}
@@ -0,0 +1,68 @@
+package util;
+
+import java.util.Random;
+
+/**
+ * Zipf distributed ranks in [1, n]: rank k is drawn with probability proportional to 1 / k^exponent.
+ * <p>
+ * Sampled by rejection-inversion (Hörmann and Derflinger), in constant time and memory whatever n,
+ * so it works for key spaces of 100M rows.
+ */
+public class Zipf {
+    final long n;
+    final double exponent;
+    final double hIntegralX1;
+    final double hIntegralN;
+    final double s;
+
+    public Zipf(long n, double exponent) {
+        if (n < 1 || exponent <= 0) throw new IllegalArgumentException("n=" + n + ", exponent=" + exponent);
+        this.n = n;
+        this.exponent = exponent;
+        hIntegralX1 = hIntegral(1.5) - 1;
+        hIntegralN = hIntegral(n + 0.5);
+        s = 2 - hIntegralInverse(hIntegral(2.5) - h(2));
+    }
+
+    /**
+     * @return rank in [1, n], 1 is the most frequent
+     */
+    public long sample(Random rnd) {
+        while (true) {
+            double u = hIntegralN + rnd.nextDouble() * (hIntegralX1 - hIntegralN);
+            double x = hIntegralInverse(u);
+            long k = Math.max(1, Math.min(n, (long) (x + 0.5)));
+            if (k - x <= s || u >= hIntegral(k + 0.5) - h(k)) {
+                return k;
+            }
+        }
+    }
+
+    double h(double x) {
+        return Math.exp(-exponent * Math.log(x));
+    }
+
+    double hIntegral(double x) {
+        double logX = Math.log(x);
+        return helper2((1 - exponent) * logX) * logX;
+    }
+
+    double hIntegralInverse(double x) {
+        double t = Math.max(-1, x * (1 - exponent));
+        return Math.exp(helper1(t) * x);
+    }
+
+    /**
+     * log(1 + x) / x, also near 0
+     */
+    static double helper1(double x) {
+        return Math.abs(x) > 1e-8 ? Math.log1p(x) / x : 1 - x * (0.5 - x * (1 / 3.0 - 0.25 * x));
+    }
+
+    /**
+     * (exp(x) - 1) / x, also near 0
+     */
+    static double helper2(double x) {
+        return Math.abs(x) > 1e-8 ? Math.expm1(x) / x : 1 + x * 0.5 * (1 + x / 3.0 * (1 + 0.25 * x));
+    }
+}
@@ -0,0 +1,27 @@
+package util;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ZipfTest {
+
+    @Test
+    public void zipf_ranks_in_range_and_skewed() {
+        Zipf zipf = new Zipf(1000, 1.0);
+        Random rnd = new Random(1);
+        long[] counts = new long[1001];
+        int samples = 100000;
+        for (int i = 0; i < samples; i++) {
+            long k = zipf.sample(rnd);
+            assertTrue("rank " + k, k >= 1 && k <= 1000);
+            counts[(int) k]++;
+        }
+        //p(1) = 1 / H(1000) = 0.134, p(2) = p(1) / 2
+        assertEquals(0.134, counts[1] / (double) samples, 0.01);
+        assertEquals(0.067, counts[2] / (double) samples, 0.01);
+    }
+}